@@ -16,6 +16,8 @@ CP=$CP:build/libs:build/classes/test
 
 RAM_SIZE=12
 BATCH_SIZE=1000
+# set OFF_HEAP=true to keep the data elements outside the java heap
+OFF_HEAP=${OFF_HEAP:-false}
 
 if [ $RAM_SIZE -eq 0 ]
 then
@@ -33,6 +35,10 @@ then
 	BATCH_SIZE=6000
 fi
 
+# off heap segments start small and grow with the data, so this is only
+# a ceiling - by default as much as the java heap
+DIRECT_SIZE=${DIRECT_SIZE:-$RAM_SIZE}
+
 
 
 if [ $# -gt 0 ]
@@ -48,4 +54,6 @@ java -cp $CP \
 	-XX:+UseG1GC \
 	-XX:+UseStringDeduplication \
 	-XX:MaxGCPauseMillis=200 \
+	-XX:MaxDirectMemorySize=${DIRECT_SIZE}g \
+	-Dliveaggregator.offheap=${OFF_HEAP} \
 	${JAVA_ARGS}
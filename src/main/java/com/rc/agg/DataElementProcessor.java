@@ -1,5 +1,7 @@
 package com.rc.agg;
 
+import java.util.Collection;
+
 import com.rc.datamodel.DataElement;
 
 /**
@@ -12,4 +14,18 @@ import com.rc.datamodel.DataElement;
  */
 public interface DataElementProcessor {
 	void process(DataElement dataElement)  ;
+
+	/**
+	 * Process many elements in one call, in the order given. This is the same
+	 * as calling process for each one, implementations should override it 
+	 * to hand off the elements in bulk. The caller may reuse the collection
+	 * once this returns, so don't keep a reference to it.
+	 * 
+	 * @param dataElements the elements to process
+	 */
+	default void processAll(Collection<DataElement> dataElements) {
+		for( DataElement dataElement : dataElements ) {
+			process( dataElement ) ;
+		}
+	}
 }
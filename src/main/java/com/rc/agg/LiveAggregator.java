@@ -1,13 +1,21 @@
 package com.rc.agg;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rc.datamodel.DataElement;
+import com.rc.dataview.DataElementJournal;
+import com.rc.dataview.DataElementSnapshot;
 import com.rc.dataview.DataElementStore;
+import com.rc.dataview.ShardedDataElementStore;
 import com.rc.dataview.ViewDefinitions;
 
 
@@ -15,39 +23,159 @@ public class LiveAggregator implements DataElementProcessor, AutoCloseable {
 	
 	final static Logger logger = LoggerFactory.getLogger( LiveAggregator.class ) ;
 
+	// Set this system property to a file name to snapshot the store, and load it at startup
+	public final static String SNAPSHOT_PROPERTY = "liveaggregator.snapshot" ;
+	// How often to write the snapshot (minutes)
+	public final static String SNAPSHOT_PERIOD_PROPERTY = "liveaggregator.snapshot.minutes" ;
+	// Set this system property to a directory to journal every element, and replay it at startup
+	public final static String JOURNAL_PROPERTY = "liveaggregator.journal" ;
+
 	private final DataElementStore dataElementStore ;
+	private final ShardedDataElementStore shardedStore ;	// null if processing on the caller's thread
 	private final Monitor webServer ;
 	private final ViewDefinitions viewDefinitions ;
+	private final DataElementSnapshot snapshot ;			// null if not snapshotting
+	private final DataElementJournal journal ;				// null if not journaling
+	private final ReadWriteLock ingestLock ;				// ingest shares it, a journal checkpoint is exclusive
 
 	public LiveAggregator() throws IOException {
+		this( 1 ) ;
+	}
+
+	/**
+	 * Create an aggregator which ingests elements on a number of threads.
+	 * Elements with the same invariant key are always processed in order.
+	 * 
+	 * @param ingestShards number of ingest threads, 1 (or less) processes on the caller's thread
+	 * @throws IOException
+	 */
+	public LiveAggregator( int ingestShards ) throws IOException {
 		Runtime runtime = Runtime.getRuntime();
 		logger.info( "Starting aggregator - using {}Mb of RAM", runtime.maxMemory()/0x100000 );
 
 		this.dataElementStore = DataElementStore.getInstance() ;
+		this.ingestLock = new ReentrantReadWriteLock() ;
+		this.shardedStore = ingestShards > 1 ? new ShardedDataElementStore( dataElementStore, ingestShards ) : null ;
 		URL viewsTxt = getClass().getClassLoader().getResource( "Views.txt" ) ;
 		if( viewsTxt==null ) {
 			throw new RuntimeException("Cannot find resource views.txt in classpath" ) ;
 		}
 		viewDefinitions = new ViewDefinitions( viewsTxt, this.dataElementStore ) ;
+		dataElementStore.getHeapBudget().addSource( "clients", WebSocketServer::getQueuedBytes ) ;
 		webServer = new Monitor() ;
 		viewDefinitions.start();
+
+		String snapshotFile = System.getProperty( SNAPSHOT_PROPERTY ) ;
+		if( snapshotFile != null ) {
+			snapshot = new DataElementSnapshot( dataElementStore, new File( snapshotFile ) ) ;
+			if( snapshot.exists() ) {
+				snapshot.load() ;
+			}
+		} else {
+			snapshot = null ;
+		}
+
+		// the journal holds everything since the last snapshot (or new batch), it goes on top of the snapshot
+		String journalDirectory = System.getProperty( JOURNAL_PROPERTY ) ;
+		if( journalDirectory != null ) {
+			File directory = new File( journalDirectory ) ;
+			if( directory.isDirectory() ) {
+				DataElementJournal.replay( directory, dataElementStore ) ;
+			}
+			journal = new DataElementJournal( directory ) ;
+		} else {
+			journal = null ;
+		}
+
+		if( snapshot != null ) {
+			if( journal != null ) {
+				snapshot.useJournal( journal, this::checkpointJournal ) ;
+			}
+			snapshot.start( Long.getLong( SNAPSHOT_PERIOD_PROPERTY, 5 ), TimeUnit.MINUTES ) ;
+		}
 		webServer.start();
 	}
 	
 	@Override
 	public void process( DataElement dataElement ) {
-		this.dataElementStore.process(dataElement);
+		ingestLock.readLock().lock() ;
+		try {
+			if( journal != null ) {
+				journal.append( dataElement ) ;
+			}
+			if( shardedStore != null ) {
+				shardedStore.process( dataElement ) ;
+			} else {
+				this.dataElementStore.process(dataElement);
+			}
+		} finally {
+			ingestLock.readLock().unlock() ;
+		}
 	}
 	
+	@Override
+	public void processAll( Collection<DataElement> dataElements ) {
+		ingestLock.readLock().lock() ;
+		try {
+			if( journal != null ) {
+				journal.appendAll( dataElements ) ;
+			}
+			if( shardedStore != null ) {
+				shardedStore.processAll( dataElements ) ;
+			} else {
+				this.dataElementStore.processAll( dataElements ) ;
+			}
+		} finally {
+			ingestLock.readLock().unlock() ;
+		}
+	}
+
+	/**
+	 * Start a new journal segment for a snapshot. Ingest is held up until
+	 * everything journaled so far is in the store, so the snapshot about to be
+	 * written holds all of the older segments.
+	 *
+	 * @return the first journal segment not in the snapshot
+	 */
+	private int checkpointJournal() {
+		ingestLock.writeLock().lock() ;
+		try {
+			int firstSegment = journal.roll() ;
+			if( shardedStore != null ) {
+				shardedStore.flush() ;
+			}
+			return firstSegment ;
+		} finally {
+			ingestLock.writeLock().unlock() ;
+		}
+	}
+
 	public DataElement get( String invariantKey ) {
 		return dataElementStore.get(invariantKey) ;
 	}
 
 	public void startBatch( boolean deleteContents ) {
-		this.dataElementStore.startBatch( deleteContents );
+		if( deleteContents ) {
+			// nothing saved so far is needed to rebuild the new batch
+			if( journal != null ) {
+				journal.truncate() ;
+			}
+			if( snapshot != null && journal != null ) {
+				snapshot.delete() ;
+			}
+		}
+		if( shardedStore != null ) {
+			shardedStore.startBatch( deleteContents ) ;
+		} else {
+			this.dataElementStore.startBatch( deleteContents );
+		}
 	}
 	public void endBatch() {
-		this.dataElementStore.endBatch();
+		if( shardedStore != null ) {
+			shardedStore.endBatch() ;
+		} else {
+			this.dataElementStore.endBatch();
+		}
 	}
 
 	public int size() {
@@ -56,6 +184,15 @@ public class LiveAggregator implements DataElementProcessor, AutoCloseable {
 
 	public void close() {
 		try {
+			if( shardedStore != null ) {
+				shardedStore.close() ;
+			}
+			if( snapshot != null ) {
+				snapshot.close() ;
+			}
+			if( journal != null ) {
+				journal.close() ;
+			}
 			webServer.close();
 			viewDefinitions.close() ;
 		} catch( Throwable t ) {
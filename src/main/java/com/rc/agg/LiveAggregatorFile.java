@@ -7,12 +7,17 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.rc.datamodel.DataElement;
 import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementBuilder;
+import com.rc.dataview.DataElementJournal;
+import com.rc.dataview.DataElementSnapshot;
 
 /**
  * This reads a csv file and fires the attributes into an aggregator.
@@ -20,6 +25,10 @@ import com.rc.datamodel.DataElementAttributes;
  * named "#VALUE#" is used as the data element value. All other columns 
  * are labels
  * 
+ * A file ending in .bin is read as binary DataElements instead (@see DataElementCodec),
+ * a snapshot file can be loaded this way too. A directory is replayed as an
+ * ingest journal (@see DataElementJournal).
+ * 
  * @author richard
  *
  */
@@ -28,6 +37,8 @@ public class LiveAggregatorFile  {
 	final static Logger logger = LoggerFactory.getLogger( LiveAggregatorFile.class ) ;
 
 	private final static String VALUE_KEY = "#VALUE#" ;
+	private final static String BINARY_FILE_SUFFIX = ".bin" ;
+	private final static int PROCESS_BATCH_SIZE = 1_000 ;		// elements sent to the aggregator at once
 
 	private final LiveAggregator aggregator ;
 
@@ -49,6 +60,14 @@ public class LiveAggregatorFile  {
 
 	public void start( String fileName ) throws InterruptedException {
 
+		if( fileName.endsWith( BINARY_FILE_SUFFIX ) ) {
+			startBinary( fileName ) ;
+			return ;
+		}
+		if( new File( fileName ).isDirectory() ) {
+			startJournal( fileName ) ;
+			return ;
+		}
 		File dataFile = new File( fileName ) ;
 		logger.info( "Starting to process {}", dataFile ); 
 		
@@ -79,30 +98,92 @@ public class LiveAggregatorFile  {
 					throw new RuntimeException("No data elements to aggregate");
 				}
 				final DataElementAttributes dae = new DataElementAttributes(attributeNames, attributeNames.length) ;
+				final DataElementBuilder builder = new DataElementBuilder( dae, 1 ) ;
+				final List<DataElement> pending = new ArrayList<>( PROCESS_BATCH_SIZE ) ;
 
 				for( s=br.readLine() ; s!=null ; s=br.readLine() ) {
 					lineNumber++ ;
 					if( lineNumber==30 ) {
+						processPending( pending ) ;
 						aggregator.endBatch();
 					}
 					s = s.trim() ;
 					if( s.charAt(0) == '#' ) {
 						continue ;
 					}
-					cols = DataElement.splitComponents(s) ;
-					String[] colsWithoutValue = new String[cols.length-1] ;
-					for( int j=0 ; j<colsWithoutValue.length ; j++ ) {
-						colsWithoutValue[j] = cols[j<valueIndex?j:(j+1)] ;
+					int numCols = DataElement.splitComponents(s, DataElement.SEPARATION_CHAR, cols) ;
+					if( numCols <= attributeNames.length ) {
+						// cols still holds the previous row past numCols
+						logger.warn( "Skipping line {} of {}, {} fields, expected {}", lineNumber, dataFile, numCols, attributeNames.length+1 ) ;
+						continue ;
+					}
+					if( numCols > cols.length ) {
+						cols = DataElement.splitComponents(s) ;
+					}
+					for( int j=0 ; j<attributeNames.length ; j++ ) {
+						builder.core( j, cols[j<valueIndex?j:(j+1)] ) ;
 					}
 					float value = Float.parseFloat( cols[ valueIndex ] ) ;
-					DataElement dataElement = new DataElement( dae, colsWithoutValue, colsWithoutValue[0] ) ;
-					dataElement.set( colsWithoutValue, value) ;
-					aggregator.process(dataElement);
+					builder.invariantKey( cols[valueIndex==0 ? 1 : 0] ).add( value ) ;
+					pending.add( builder.build() ) ;
+					if( pending.size() >= PROCESS_BATCH_SIZE ) {
+						processPending( pending ) ;
+					}
 				}
+				processPending( pending ) ;
 			}
 			logger.info( "Finished processing {} lines of {}", lineNumber, dataFile ) ;  
 		} catch (IOException e) {
 			logger.error( "Error processing input file.", e );
 		}
 	}
+
+	/**
+	 * Load a file of binary encoded DataElements. 
+	 * 
+	 * @see DataElementSnapshot#read(File, DataElementProcessor)
+	 * @param fileName the file to read
+	 */
+	public void startBinary( String fileName ) {
+		File dataFile = new File( fileName ) ;
+		logger.info( "Starting to process binary {}", dataFile ); 
+		
+		aggregator.startBatch( true );
+		try {
+			int numElements = DataElementSnapshot.read( dataFile, aggregator ) ;
+			logger.info( "Finished processing {} elements of {}", numElements, dataFile ) ;  
+		} catch (IOException e) {
+			logger.error( "Error processing input file.", e );
+		}
+		aggregator.endBatch();
+	}
+
+	/**
+	 * Replay a journal directory, every element in the order it was
+	 * originally processed.
+	 * 
+	 * @see DataElementJournal#replay(File, DataElementProcessor)
+	 * @param directoryName the journal directory
+	 */
+	public void startJournal( String directoryName ) {
+		File directory = new File( directoryName ) ;
+		logger.info( "Starting to replay journal {}", directory ); 
+		
+		aggregator.startBatch( true );
+		try {
+			long numElements = DataElementJournal.replay( directory, aggregator ) ;
+			logger.info( "Finished replaying {} elements of {}", numElements, directory ) ;  
+		} catch (IOException e) {
+			logger.error( "Error replaying journal.", e );
+		}
+		aggregator.endBatch();
+	}
+
+	// Send the elements read so far to the aggregator, as one batch
+	private void processPending( List<DataElement> pending ) {
+		if( !pending.isEmpty() ) {
+			aggregator.processAll( pending ) ;
+			pending.clear() ;
+		}
+	}
 }
@@ -2,6 +2,8 @@ package com.rc.agg;
 
 import java.io.IOException;
 import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Random;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -14,6 +16,7 @@ import org.slf4j.LoggerFactory;
 
 import com.rc.datamodel.DataElement;
 import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementBuilder;
 
 public class LiveAggregatorRandom  {
 	final static Logger logger = LoggerFactory.getLogger( LiveAggregatorRandom.class ) ;
@@ -26,6 +29,7 @@ public class LiveAggregatorRandom  {
 	private final LiveAggregator aggregator ;
 	private final String[] ccys;
 	private final DataElementAttributes dae;
+	private final ThreadLocal<DataElementBuilder> builders ;	// one per producer thread
 
 	private static final String[] CCYS = new String[] { "USD", "CAD", "EUR", "GBP", "JPY", "SEK", "AUD", "HKD" } ;
 	private static final String[] EVENTS = new String[] { "SOD", "AMEND"  } ;
@@ -37,6 +41,7 @@ public class LiveAggregatorRandom  {
 
 	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "CPTY", "BOOK", "PRODUCT", "EVENT", "METRIC", "TENOR", "CCY" } ; 
 	private final static int NUM_CORE_ATTRIBUTES = 5 ;
+	private final static int CREATE_BATCH_SIZE = 1_000 ;	// elements made per task in the initial load
 
 	final Random random = new Random( 100 ) ;
 
@@ -78,7 +83,8 @@ public class LiveAggregatorRandom  {
 		final int N = numBatches * batchSize ;
 		ccys =  random.ints(N,0,CCYS.length).mapToObj(ix -> CCYS[ix]).toArray(String[]::new);
 		dae = new DataElementAttributes(ATTRIBUTE_NAMES, NUM_CORE_ATTRIBUTES) ;
-		this.aggregator = new LiveAggregator() ;
+		builders = ThreadLocal.withInitial( () -> new DataElementBuilder( dae, dataPointsPerItem ).sanitize( false ) ) ;
+		this.aggregator = new LiveAggregator( Runtime.getRuntime().availableProcessors() ) ;
 		this.tid = new AtomicInteger(0);
 	}
 
@@ -93,8 +99,9 @@ public class LiveAggregatorRandom  {
 			tid.set(0);
 			aggregator.startBatch(true);
 			try ( ExecutorService executor = Executors.newFixedThreadPool( 6 ) ) {
-				for (int i = 0; i < N; i ++) {
-					executor.execute( this::createOne );
+				for (int i = 0; i < N; i += CREATE_BATCH_SIZE) {
+					final int count = Math.min( CREATE_BATCH_SIZE, N-i ) ;
+					executor.execute( () -> createBatch( count ) );
 				}
 
 				executor.shutdown();  // wait for initial view to finish generating
@@ -118,38 +125,40 @@ public class LiveAggregatorRandom  {
 	}
 
 	public void createOne() {
+		aggregator.process( create() );
+	}
+
+	public void createBatch( int count ) {
+		List<DataElement> batch = new ArrayList<>( count ) ;
+		for( int i=0 ; i<count ; i++ ) {
+			batch.add( create() ) ;
+		}
+		aggregator.processAll( batch ) ;
+	}
+
+	private DataElement create() {
 		final int key = tid.getAndIncrement();
 		final String invariantKey = String.valueOf(key);
 
-		DataElement de = new DataElement(
-				dataPointsPerItem,
-				dae,
-				new String[]{
-						invariantKey,
-						CPTYS[random.nextInt(CPTYS.length)],
-						BOOKS[random.nextInt(BOOKS.length)],
-						PRODUCTS[random.nextInt(PRODUCTS.length)],
-						EVENTS[0]
-				},
-				(invariantKey + "-SOD")
-		);
-		for (int j = 0; j < de.size(); j++) {
+		DataElementBuilder builder = builders.get() ;
+		builder.invariantKey( invariantKey + "-SOD" )
+				.core( 0, invariantKey )
+				.core( 1, CPTYS[random.nextInt(CPTYS.length)] )
+				.core( 2, BOOKS[random.nextInt(BOOKS.length)] )
+				.core( 3, PRODUCTS[random.nextInt(PRODUCTS.length)] )
+				.core( 4, EVENTS[0] ) ;
+		for (int j = 0; j < dataPointsPerItem; j++) {
 			String metric = METRICS[random.nextInt(METRICS.length)];
-			de.set(j,
-					new String[]{
-							metric,
-							metric.equals("IR01") ? TENORS[random.nextInt(TENORS.length)] : null,
-							ccys[key]
-					},
-					(random.nextInt(1001) - 500) / 10.f
-			);
+			builder.perimeter( 0, metric )
+					.perimeter( 1, metric.equals("IR01") ? TENORS[random.nextInt(TENORS.length)] : null )
+					.perimeter( 2, ccys[key] )
+					.add( (random.nextInt(1001) - 500) / 10.f ) ;
 		}
 
-		for (int j = 0; j < de.size(); j++) {
-			de.set(j, de.getValue(j) + (random.nextInt(1001) - 500) / 100.f);
+		for (int j = 0; j < builder.size(); j++) {
+			builder.setValue(j, builder.getValue(j) + (random.nextInt(1001) - 500) / 100.f);
 		}
-		de.sanitize();
-		aggregator.process(de);
+		return builder.build() ;
 	}
 
 
@@ -159,39 +168,29 @@ public class LiveAggregatorRandom  {
 		int tid = random.nextInt( N );
 		String invariantKey = tid + "-AMEND" ;
 
+		DataElementBuilder builder = builders.get() ;
 		DataElement de = aggregator.get( invariantKey ) ;
 		if( de != null ) {
-			de = de.clone() ;
+			builder.from( de ) ;
 		} else {
-			de = new DataElement(
-					dataPointsPerItem,
-					dae,
-					new String[] {
-							String.valueOf(tid),
-							CPTYS[ random.nextInt(CPTYS.length) ],
-							BOOKS[ random.nextInt(BOOKS.length) ],
-							PRODUCTS[ random.nextInt(PRODUCTS.length) ],
-							EVENTS[1]
-					},
-					invariantKey
-			) ;
+			builder.invariantKey( invariantKey )
+					.core( 0, String.valueOf(tid) )
+					.core( 1, CPTYS[ random.nextInt(CPTYS.length) ] )
+					.core( 2, BOOKS[ random.nextInt(BOOKS.length) ] )
+					.core( 3, PRODUCTS[ random.nextInt(PRODUCTS.length) ] )
+					.core( 4, EVENTS[1] ) ;
 			String ccy = ccys[tid] ;
-			for( int j=0 ; j<de.size() ; j++ ) {
+			for( int j=0 ; j<dataPointsPerItem ; j++ ) {
 				String metric = METRICS[ random.nextInt( METRICS.length ) ] ;
-				de.set(j,
-						new String[] {
-								metric,
-								metric.equals("IR01")?TENORS[ random.nextInt( TENORS.length ) ]:null,
-								ccy
-						},
-						(random.nextInt( 1001 ) - 500) / 10.f
-				) ;
+				builder.perimeter( 0, metric )
+						.perimeter( 1, metric.equals("IR01")?TENORS[ random.nextInt( TENORS.length ) ]:null )
+						.perimeter( 2, ccy )
+						.add( (random.nextInt( 1001 ) - 500) / 10.f ) ;
 			}
 		}
-		for( int j=0 ; j<de.size() ; j++ ) {
-			de.set(j, de.getValue(j) + (random.nextInt( 1001 ) - 500) / 100.f ) ;
+		for( int j=0 ; j<builder.size() ; j++ ) {
+			builder.setValue(j, builder.getValue(j) + (random.nextInt( 1001 ) - 500) / 100.f ) ;
 		}
-		de.sanitize();
-		aggregator.process( de ) ;
+		aggregator.process( builder.build() ) ;
 	}
 }
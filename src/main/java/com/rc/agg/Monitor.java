@@ -28,6 +28,8 @@ public class Monitor implements AutoCloseable {
 	final static String ELEMENT_KEY_PARAM = "element-key" ;
 	final static String VIEW_NAME_PARAM = "view-name" ;
 	final static String LIMIT_PARAM = "limit" ;
+	final static String ORDER_PARAM = "order" ;				// "abs" for largest absolute values first
+	final static String ORDER_BY_ABSOLUTE_VALUE = "abs" ;
 	final static String INVARIANT_KEY_PARAM = "invariant-key" ;
 	
 	final Gson gson ;
@@ -89,9 +91,10 @@ public class Monitor implements AutoCloseable {
 			}
 			String tmp = req.queryParams(LIMIT_PARAM) ;
 			int limit = Integer.parseInt(tmp) ;
+			boolean orderByAbsoluteValue = ORDER_BY_ABSOLUTE_VALUE.equals( req.queryParams(ORDER_PARAM) ) ;
 			logger.info( "Querying for {} in view {} - max {} items", elementKey.replaceAll("\f", "|"), viewName, limit ) ;
 			DataElementStore des = DataElementStore.getInstance() ;
-			Collection<DataDetailMessage> matching = des.query(elementKey, viewName, limit) ;
+			Collection<DataDetailMessage> matching = des.query(elementKey, viewName, limit, orderByAbsoluteValue) ;
 			rc = matching ;
 			logger.info( "Found {} items", !matching.isEmpty() ?matching.size()-1:0  ) ;
 		} catch ( Throwable t ) {
@@ -112,7 +115,14 @@ public class Monitor implements AutoCloseable {
 		rc.append( "<h2>Data store</h2><pre>");
 		rc.append( DataElementStore.getInstance().toString() ) ;
 		rc.append("</pre><br>") ;
+		rc.append( "<h2>Memory</h2><pre>");
+		rc.append( DataElementStore.getInstance().getHeapBudget() ) ;
+		rc.append("</pre><br>") ;
 		rc.append( "<h2>Defined Views</h2>");
+		String rebuildStatus = DataElementStore.getInstance().getRebuildStatus() ;
+		if( rebuildStatus != null ) {
+			rc.append( "<p>" ).append( rebuildStatus ).append( "</p>" ) ;
+		}
 		rc.append("<ul>") ;
 		
 		for(  String viewName : DataElementStore.getInstance().getDataViewNames() ) {
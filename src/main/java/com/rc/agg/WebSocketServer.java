@@ -17,6 +17,7 @@ import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * One of the more interesting classes, this handles raw messages from the client.
@@ -122,6 +123,13 @@ public class WebSocketServer  {
         }
 	}
 	
+	/**
+	 * @return the estimated heap used by messages waiting to go to clients
+	 */
+	public static long getQueuedBytes() {
+		return WebSocketCommandProcessor.getQueuedBytes() ;
+	}
+
 	/**
 	 * Used for debugging in the monitor page only
 	 * @return a representation of the static parts of the class
@@ -160,6 +168,10 @@ class WebSocketCommandProcessor extends ClientCommandProcessorImpl implements Ru
 	// to prevent unnecessary timeouts.
 	private static final int MIN_HEARTBEAT_INTERVAL_SECONDS = 1 ;
 	private static final int CLIENT_MESSAGE_SENDING_INTERVAL_MILLIS = 150 ;
+	// rough heap used by a queued message, as well as its characters
+	private static final int MESSAGE_OVERHEAD_BYTES = 56 ;
+	// estimated bytes waiting in all the clients' queues
+	private static final AtomicLong queuedBytes = new AtomicLong() ;
 
 	private final Session session ;
 	private final BlockingQueue<String> messagesToBeSent ;
@@ -219,6 +231,7 @@ class WebSocketCommandProcessor extends ClientCommandProcessorImpl implements Ru
 				if( rateClock>0 ) continue;
 				rateClock = MAX_RATE - rate ;
 				messagesToBeSent.drainTo( messagesToSend ) ;
+				queuedBytes.addAndGet( -estimatedBytes( messagesToSend ) ) ;
 				nextHeartbeatMsg = System.currentTimeMillis() + MIN_HEARTBEAT_INTERVAL_SECONDS*1000 ;
 				msgBuffer.setLength( 0 ) ;
 				msgBuffer.append( '[' ) ;
@@ -237,13 +250,19 @@ class WebSocketCommandProcessor extends ClientCommandProcessorImpl implements Ru
 		}
 		
 		reader = null ;
+		// nothing will send these now
+		messagesToSend.clear() ;
+		messagesToBeSent.drainTo( messagesToSend ) ;
+		queuedBytes.addAndGet( -estimatedBytes( messagesToSend ) ) ;
 	}
 	
 	@Override
 	protected void transmit(CharSequence message) throws ClientDisconnectedException {
 		if( reader != null ) {		// must not put a message on the queue if there's no queue (i.e. reader died unexpectedly)
 			try {
-				messagesToBeSent.put( message.toString() ) ;
+				String s = message.toString() ;
+				messagesToBeSent.put( s ) ;
+				queuedBytes.addAndGet( MESSAGE_OVERHEAD_BYTES + s.length() ) ;
 			} catch( InterruptedException e ) {
 				logger.info( "Interrupted during wait to transmit to {}.", session.getRemoteAddress() ) ;
 			}
@@ -253,6 +272,21 @@ class WebSocketCommandProcessor extends ClientCommandProcessorImpl implements Ru
 		}
 	}
 	
+	/**
+	 * @return the estimated heap used by messages waiting to go to all clients
+	 */
+	static long getQueuedBytes() {
+		return queuedBytes.get() ;
+	}
+
+	private static long estimatedBytes( List<String> messages ) {
+		long rc = 0 ;
+		for( String message : messages ) {
+			rc += MESSAGE_OVERHEAD_BYTES + message.length() ;
+		}
+		return rc ;
+	}
+
 	/**
 	 * Used for the monitor & debugging
 	 * 
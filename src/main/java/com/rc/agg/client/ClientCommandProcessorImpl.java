@@ -38,10 +38,12 @@ public abstract class ClientCommandProcessorImpl implements ClientCommandProcess
 			append( "\",\"command\":\"").append( command ).append( '"' )  ;			
 		}
 		if( rowKeys != null ) {
-			msg.append( ",\"rowKeys\": [" ).append( printArray(DataElement.splitComponents(rowKeys)) ).append( ']' );
+			msg.append( ",\"rowKeys\": [" ) ;
+			printComponents( msg, rowKeys ).append( ']' );
 		}
 		if( colKeys != null ) {
-			msg.append( ",\"colKeys\": [" ).append( printArray(DataElement.splitComponents(colKeys)) ).append( ']' );
+			msg.append( ",\"colKeys\": [" ) ;
+			printComponents( msg, colKeys ).append( ']' );
 		}
 		if( description!= null ) {
 			msg.append( ",\"description\": \"" ).append( description ).append( '"' );
@@ -93,6 +95,30 @@ public abstract class ClientCommandProcessorImpl implements ClientCommandProcess
 		sb.append( '"' ) ;
 		return sb.toString() ;
 	}
+	/**
+	 * Print a tab separated key into json compatible format, the same
+	 * as printArray( DataElement.splitComponents(key) ) without making 
+	 * the intermediate Strings. 
+	 * 
+	 * @see #printArray(String[])
+	 * @param sb where to print the array
+	 * @param key the tab separated components
+	 * @return sb - to allow chaining
+	 */
+	public static StringBuilder printComponents( StringBuilder sb, String key ) {
+		int[] offsets = new int[16] ;
+		int numComponents = DataElement.componentOffsets( key, DataElement.SEPARATION_CHAR, offsets ) ;
+		if( numComponents >= offsets.length ) {
+			offsets = new int[numComponents+1] ;
+			DataElement.componentOffsets( key, DataElement.SEPARATION_CHAR, offsets ) ;
+		}
+		for( int i=0 ; i<numComponents ; i++ ) {
+			if( i>0 ) sb.append( ',' ) ;
+			sb.append( '"' ).append( key, offsets[i], offsets[i+1]-1 ).append( '"' ) ;
+		}
+		return sb ;
+	}
+
 	/**
 	 * @see #printArray(String[])
 	 * @param arr
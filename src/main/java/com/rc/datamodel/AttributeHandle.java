@@ -0,0 +1,61 @@
+package com.rc.datamodel;
+
+/**
+ * A pre-resolved reference to an attribute. Looking up an attribute by name
+ * means a hash lookup on every call, a handle does that lookup once, so code
+ * that reads the same attribute from many values (e.g. the view aggregation)
+ * can go straight to the label.
+ *
+ * A handle is only valid for the DataElementAttributes that made it. Elements
+ * with other attributes fall back to the lookup by name.
+ *
+ * @author richard
+ * @see DataElementAttributes#getHandle(String)
+ */
+public final class AttributeHandle {
+
+	private final DataElementAttributes attributes ;
+	private final String name ;
+	private final int index ;
+	private final boolean core ;
+
+	AttributeHandle( DataElementAttributes attributes, String name, int index ) {
+		this.attributes = attributes ;
+		this.name = name ;
+		this.index = index ;
+		this.core = index >= 0 && index < attributes.getNumCoreAttributes() ;
+	}
+
+	public DataElementAttributes getAttributes() {
+		return attributes ;
+	}
+
+	public String getName() {
+		return name ;
+	}
+
+	/**
+	 * @return the index of the attribute, -1 if the attributes don't have this name
+	 */
+	public int getIndex() {
+		return index ;
+	}
+
+	/**
+	 * @return whether the attribute exists in the attributes
+	 */
+	public boolean isValid() {
+		return index >= 0 ;
+	}
+
+	/**
+	 * @return whether this is a core attribute (once per element)
+	 */
+	public boolean isCore() {
+		return core ;
+	}
+
+	public String toString() {
+		return name + "[" + index + "]" ;
+	}
+}
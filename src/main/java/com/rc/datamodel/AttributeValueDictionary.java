@@ -0,0 +1,123 @@
+package com.rc.datamodel;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This maps the labels of a single attribute to a dense int code. There
+ * are usually only a few hundred different labels for an attribute (CCY, BOOK etc.)
+ * but millions of elements using them, so elements hold the codes and
+ * decode them when asked.
+ *
+ * Codes are never removed, a code handed out is valid for the life of the
+ * dictionary. A null label is always encoded as NULL_CODE.
+ *
+ * So a dictionary only grows, it holds every label ever encoded while its
+ * DataElementAttributes is in use, even once no element holds that label.
+ * That's fine for attributes with a fixed set of values, but an attribute
+ * with a new value each batch (a trade id, a date) grows without limit. A
+ * source should make a new DataElementAttributes for each full batch (as
+ * LiveAggregatorFile does for each file), the old dictionaries go when the
+ * last element using them is replaced. The sizes are on the monitor.
+ *
+ * Lookups (and size) are lock free, adding a new label is synchronized.
+ *
+ * @author richard
+ * @see DataElementAttributes
+ */
+public class AttributeValueDictionary {
+
+	/**
+	 * The code used to represent a null label
+	 */
+	public static final int NULL_CODE = -1 ;
+
+	/**
+	 * Never handed out, so no element holds it. Used e.g. for a filter
+	 * label that's not in the dictionary (yet).
+	 */
+	public static final int NO_CODE = -2 ;
+
+	// Rough heap per label: the String, its map entry, the boxed code and the array slot
+	private static final long BYTES_PER_LABEL = 100 ;
+
+	private final Map<String,Integer> codes ;
+	private volatile String[] values ;
+	private volatile int size ;
+
+	public AttributeValueDictionary() {
+		this.codes = new ConcurrentHashMap<>() ;
+		this.values = new String[16] ;
+		this.size = 0 ;
+	}
+
+	/**
+	 * Find the code of a label, adding the label to the
+	 * dictionary if it's not been seen before.
+	 *
+	 * @param value the label to encode (may be null)
+	 * @return the code for the label
+	 */
+	public int encode( String value ) {
+		if( value == null ) return NULL_CODE ;
+		Integer code = codes.get( value ) ;
+		return code != null ? code : add( value ) ;
+	}
+
+	/**
+	 * Find the code of a label, without adding it.
+	 *
+	 * @param value the label to look for
+	 * @return the code, or NULL_CODE if the label has never been encoded
+	 */
+	public int codeOf( String value ) {
+		if( value == null ) return NULL_CODE ;
+		Integer code = codes.get( value ) ;
+		return code != null ? code : NULL_CODE ;
+	}
+
+	/**
+	 * Turn a code back into its label
+	 *
+	 * @param code a code previously returned from encode
+	 * @return the label (null for NULL_CODE)
+	 */
+	public String decode( int code ) {
+		return code < 0 ? null : values[code] ;
+	}
+
+	/**
+	 * How many labels are in the dictionary. Codes are 0 .. size()-1
+	 *
+	 * @return the number of different labels
+	 */
+	public int size() {
+		return size ;
+	}
+
+	/**
+	 * A rough estimate of the heap used by the labels
+	 *
+	 * @return estimated bytes
+	 */
+	public long getEstimatedBytes() {
+		return size() * BYTES_PER_LABEL ;
+	}
+
+	// The array is written before the map, so anyone reading a
+	// code from the map will find its label in the array
+	private synchronized int add( String value ) {
+		Integer code = codes.get( value ) ;
+		if( code != null ) return code ;
+
+		String[] tmp = values ;
+		if( size == tmp.length ) {
+			tmp = Arrays.copyOf( tmp, tmp.length * 2 ) ;
+		}
+		tmp[size] = value ;
+		values = tmp ;
+		codes.put( value, size ) ;
+		return size++ ;
+	}
+}
@@ -3,8 +3,6 @@ package com.rc.datamodel;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.Set;
-import java.util.StringJoiner;
-import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,6 +32,15 @@ import org.slf4j.LoggerFactory;
  * 
  * A DataElement contains size() values, which can be accessed by getValue() and set() 
  * 
+ * Labels are not held as Strings, each label is encoded into an int using the
+ * dictionary of its attribute (@see DataElementAttributes). They are decoded
+ * when asked for by getAttribute etc.
+ * 
+ * An element may carry a sequence number from its source, a version of the
+ * element which goes up with each replacement. The store uses it to drop
+ * replacements which arrive late or more than once (@see #supersedes(DataElement)).
+ * Elements without one (NO_SEQUENCE) simply replace whatever came before.
+ * 
  * @author richard
  *
  */
@@ -44,9 +51,10 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	public static final char SEPARATION_CHAR = '\t' ;
 	public static final String SEPARATION_STRING = String.valueOf(SEPARATION_CHAR) ;
 	public static final String ROW_COL_SEPARATION_STRING = String.valueOf(ROW_COL_SEPARATION_CHAR) ;
-	private static final Pattern SEPARATION_CHAR_PATTERN = Pattern.compile( Pattern.quote( String.valueOf(SEPARATION_CHAR) ) ) ;
+	public static final long NO_SEQUENCE = 0 ;
 	
 	private final long createdTime ;			// timestamp of creation
+	private final long sequence ;				// version given by the source, NO_SEQUENCE if none
 	private final String invariantKey ;			// a key for this update - used to identify replacements
 	
 	private final double[] values;				// each value
@@ -57,10 +65,11 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 */
 	private final DataElementAttributes attributes ;	
 	
-	//private final long bloomFilter ;
+	private final long coreSignature ;			// bloom filter of the core labels - see quickMatchesCoreKeys
 
-	private final String[] coreValues;			// the core labels
-	private final String[][] perimeterValues;	// the perimeter labels
+	private final int[] coreCodes;				// the core labels - as dictionary codes
+	private final int[][] perimeterCodes;		// the perimeter labels - one column of codes per perimeter attribute
+	private int contentHash ;					// hash of the labels & values, 0 until worked out (@see #getContentHash)
 
 	/**
 	 * Constructor takes the attribute names (label names), core labels and the invariant key
@@ -94,13 +103,89 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @param invariantKey the special attribute - the unique ID of this item
 	 */
 	public DataElement(int length, DataElementAttributes attributes, String[] coreValues, String invariantKey ) {
+		this( length, attributes, encodeCoreValues( attributes, coreValues ), invariantKey ) ;
+	}
+
+	/**
+	 * Used internally when the core values are already encoded. The
+	 * codes are shared, not copied, they must never be changed.
+	 */
+	private DataElement(int length, DataElementAttributes attributes, int[] coreCodes, String invariantKey ) {
 		this.createdTime	= System.currentTimeMillis() ;
+		this.sequence		= NO_SEQUENCE ;
 		this.invariantKey 	= invariantKey ;		
 		this.attributes		= attributes ;
-		this.coreValues 	= coreValues ;
+		this.coreCodes 		= coreCodes ;
+		this.coreSignature	= attributes.coreSignature( coreCodes ) ;
 		this.size			= length ;
 		values 				= new double[size] ;
-		perimeterValues 	= new String[size][] ;
+		perimeterCodes 		= newPerimeterColumns( attributes.getNumPerimeterAttributes(), size ) ;
+	}
+
+	/**
+	 * Perimeter labels are stored as columns, one int[] per perimeter attribute
+	 * each with one code per value. Unset labels are null.
+	 */
+	private static int[][] newPerimeterColumns( int numPerimeterAttributes, int length ) {
+		int[][] rc = new int[numPerimeterAttributes][length] ;
+		for( int[] column : rc ) {
+			Arrays.fill( column, AttributeValueDictionary.NULL_CODE ) ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * Turn the core labels into dictionary codes
+	 */
+	private static int[] encodeCoreValues( DataElementAttributes attributes, String[] coreValues ) {
+		int[] rc = new int[ attributes.getNumCoreAttributes() ] ;
+		for( int i=0 ; i<rc.length ; i++ ) {
+			rc[i] = i<coreValues.length ? attributes.encode( i, coreValues[i] ) : AttributeValueDictionary.NULL_CODE ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * Copy the perimeter labels of one value from another element. If the other
+	 * element has different attributes the labels are matched by position.
+	 */
+	private void setPerimeterCodes( int index, DataElement other, int otherIndex ) {
+		if( other.attributes == attributes ) {
+			for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+				perimeterCodes[p][index] = other.perimeterCodes[p][otherIndex] ;
+			}
+		} else {
+			final int numCore = coreCodes.length ;
+			final int otherNumCore = other.coreCodes.length ;
+			for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+				String label = p<other.perimeterCodes.length ? other.attributes.decode( otherNumCore+p, other.perimeterCodes[p][otherIndex] ) : null ;
+				perimeterCodes[p][index] = attributes.encode( numCore+p, label ) ;
+			}
+		}
+	}
+
+	/**
+	 * Do two values in this element have identical perimeter labels?
+	 */
+	private boolean samePerimeterCodes( int i, int j ) {
+		for( int[] column : perimeterCodes ) {
+			if( column[i] != column[j] ) return false ;
+		}
+		return true ;
+	}
+
+	/**
+	 * Copy the perimeter columns, resized to a new length
+	 */
+	private int[][] copyPerimeterColumns( int newSize ) {
+		int[][] rc = new int[perimeterCodes.length][] ;
+		for( int p=0 ; p<rc.length ; p++ ) {
+			rc[p] = Arrays.copyOf( perimeterCodes[p], newSize ) ;
+			if( newSize > size() ) {
+				Arrays.fill( rc[p], size(), newSize, AttributeValueDictionary.NULL_CODE ) ;
+			}
+		}
+		return rc ;
 	}
 
 	/**
@@ -122,10 +207,67 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @param value
 	 */
 	public void set(int index, String[] perimeterValues, double value ) {
-		this.perimeterValues[index] = perimeterValues ;
+		contentHash = 0 ;
+		final int numCore = coreCodes.length ;
+		for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+			perimeterCodes[p][index] = p<perimeterValues.length ? 
+						attributes.encode( numCore+p, perimeterValues[p] ) : AttributeValueDictionary.NULL_CODE ;
+		}
 		this.values[index] = value ;		
 	}
+
+	/**
+	 * Private constructor used by the copy methods. The core codes
+	 * are shared, the perimeter columns and values are taken as given.
+	 * Copies keep the sequence of the original.
+	 */
+	private DataElement(DataElement original, int size, int[][] perimeterCodes, double[] values, String invariantKey ) {
+		this.createdTime	= System.currentTimeMillis() ;
+		this.sequence		= original.sequence ;
+		this.invariantKey 	= invariantKey ;		
+		this.attributes		= original.attributes ;
+		this.coreCodes 		= original.coreCodes ;
+		this.coreSignature	= original.coreSignature ;
+		this.size			= size ;
+		this.values			= values ;
+		this.perimeterCodes	= perimeterCodes ;
+	}
 	
+	/**
+	 * Constructor used to rebuild an element from its encoded form. 
+	 * The arrays are taken as given, not copied.
+	 * 
+	 * @see DataElementCodec
+	 */
+	DataElement(DataElementAttributes attributes, String invariantKey, long createdTime, long sequence, int[] coreCodes, int[][] perimeterCodes, double[] values, int size ) {
+		this.createdTime	= createdTime ;
+		this.sequence		= sequence ;
+		this.invariantKey 	= invariantKey ;		
+		this.attributes		= attributes ;
+		this.coreCodes 		= coreCodes ;
+		this.coreSignature	= attributes.coreSignature( coreCodes ) ;
+		this.size			= size ;
+		this.values			= values ;
+		this.perimeterCodes	= perimeterCodes ;
+	}
+
+	/**
+	 * The dictionary code of a core label
+	 * @param coreIndex the index of the core attribute
+	 */
+	int getCoreCode( int coreIndex ) {
+		return coreCodes[coreIndex] ;
+	}
+
+	/**
+	 * The dictionary code of a perimeter label
+	 * @param perimeterIndex the index of the perimeter attribute (0 = first perimeter attribute)
+	 * @param index the DataElement value in the DataElement
+	 */
+	int getPerimeterCode( int perimeterIndex, int index ) {
+		return perimeterCodes[perimeterIndex][index] ;
+	}
+
 	
 	/**
 	 * Sets the nth value in the DataElement 
@@ -134,28 +276,72 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @param value
 	 */
 	public void set( int index, double value ) {
+		contentHash = 0 ;
 		this.values[index] = value ;		
 	}
 	
+	/**
+	 * Remove values with duplicate labels, the last of the duplicates is kept. 
+	 * 
+	 * @see #sanitize(boolean)
+	 */
 	public void sanitize() {
-		var indicesToRemove = new int[size()];
-		var numIndicesToRemove = 0 ;
-		for( int i=0 ; i<size() ; i++ ) {
-			for( int j=i+1 ; j<size() ; j++ ) {
-				if( Arrays.deepEquals(perimeterValues[i], perimeterValues[j])) {
-					indicesToRemove[numIndicesToRemove] = i ;
-					numIndicesToRemove++;
-					break;
+		sanitize( false ) ;
+	}
+
+	/**
+	 * Remove values with duplicate labels. Either the last of the duplicates is
+	 * kept, or the duplicates are summed into one value (in the place of the last
+	 * one). Summing lets a producer send unaggregated rows. 
+	 * 
+	 * Duplicates are found with a hash of the perimeter labels, so this is linear
+	 * in the size of the element.
+	 * 
+	 * @param sumDuplicates add duplicate values together rather than drop them
+	 */
+	public void sanitize( boolean sumDuplicates ) {
+		var remove = new boolean[size()];
+		var slots = new int[ Integer.highestOneBit( Math.max( 2, size() ) * 2 ) * 2 ] ;	// value index+1, 0 is empty
+		final int mask = slots.length - 1 ;
+		boolean anyRemoved = false ;
+		for( int i=size()-1 ; i>=0 ; i-- ) {
+			int slot = PerimeterIndex.hash( this, i ) & mask ;
+			for( ; slots[slot] != 0 ; slot = (slot+1) & mask ) {
+				int kept = slots[slot] - 1 ;
+				if( samePerimeterCodes(i, kept) ) {
+					remove[i] = true ;
+					anyRemoved = true ;
+					if( sumDuplicates ) {
+						values[kept] += values[i] ;
+					}
+					break ;
 				}
 			}
+			if( !remove[i] ) {
+				slots[slot] = i+1 ;
+			}
 		}
-		for( int ix=0 ; ix<numIndicesToRemove ; ix++ ) {
-			int from = indicesToRemove[ix]-ix ;
-			int copyCount = size() - from - 1 ;
-			System.arraycopy(perimeterValues, from+1, perimeterValues, from, copyCount ) ;
-			System.arraycopy(values, from+1, values, from, copyCount ) ;
+		if( anyRemoved ) {
+			compact( remove ) ;
+		}
+	}
+
+	/**
+	 * Squeeze out the flagged values, in one pass over each column
+	 */
+	private void compact( boolean[] remove ) {
+		int newSize = 0 ;
+		for( int i=0 ; i<size() ; i++ ) {
+			if( !remove[i] ) {
+				values[newSize] = values[i] ;
+				for( int[] column : perimeterCodes ) {
+					column[newSize] = column[i] ;
+				}
+				newSize++ ;
+			}
 		}
-		this.size = size() - numIndicesToRemove ;
+		this.size = newSize ;
+		this.contentHash = 0 ;
 	}
 	/**
 	 * Return the primary key for this item
@@ -187,7 +373,7 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 */
 	public String getAttribute( String attributeName ) {
 		int ix = attributes.getAttributeIndex(attributeName) ;		
-		return ix<0 ? null : ix<coreValues.length ? coreValues[ix] : null ;
+		return ix<0 ? null : ix<coreCodes.length ? attributes.decode( ix, coreCodes[ix] ) : null ;
 	}
 
 	/**
@@ -201,10 +387,47 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 */
 	public String getAttribute( int index, String attributeName ) {
 		int ix = attributes.getAttributeIndex(attributeName) ;		
-		String rc =  ix<0 ? attributeName : ix<coreValues.length ? coreValues[ix] : perimeterValues[index][ix-coreValues.length] ;
+		String rc =  ix<0 ? attributeName : 
+					 ix<coreCodes.length ? attributes.decode( ix, coreCodes[ix] ) : 
+					 attributes.decode( ix, perimeterCodes[ix-coreCodes.length][index] ) ;
 		return rc == null ? "-" : rc ;
 	}
 
+
+
+	/**
+	 * Return the value of an attribute using a pre-resolved handle. This 
+	 * gives the same answer as getAttribute( index, handle.getName() ) 
+	 * without looking up the name.
+	 * 
+	 * @param index the DataElement value in the DataElement
+	 * @param handle the attribute, from DataElementAttributes.getHandle
+	 * @return the value of the given attribute
+	 */
+	public String getAttribute( int index, AttributeHandle handle ) {
+		if( handle.getAttributes() != attributes ) {
+			return getAttribute( index, handle.getName() ) ;
+		}
+		return getAttribute( index, handle.getIndex(), handle.getName() ) ;
+	}
+
+	/**
+	 * Return the encoded value of an attribute using a pre-resolved handle.
+	 * Comparing codes is cheaper than comparing labels, codes come from 
+	 * the attribute dictionaries.
+	 * 
+	 * @see DataElementAttributes#encode(int, String)
+	 * @param index the DataElement value in the DataElement
+	 * @param handle a valid handle made by this element's attributes
+	 * @return the code of the attribute value (NULL_CODE for a null)
+	 */
+	public int getCode( int index, AttributeHandle handle ) {
+		if( handle.getAttributes() != attributes || !handle.isValid() ) {
+			throw new IllegalArgumentException( "Attribute handle " + handle + " cannot be used with " + invariantKey ) ;
+		}
+		int ix = handle.getIndex() ;
+		return ix<coreCodes.length ? coreCodes[ix] : perimeterCodes[ix-coreCodes.length][index] ;
+	}
 	
 
 	/**
@@ -216,9 +439,46 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 		return size ;
 	}
 
+	/**
+	 * A rough count of the heap used by this element: the object, its key and
+	 * arrays (at their allocated size). The attributes are shared, so not counted.
+	 * 
+	 * @return the estimated number of bytes
+	 */
+	public long getEstimatedBytes() {
+		long rc = 64 ;											// object header & fields
+		rc += 40 + invariantKey.length() ;						// String and its (latin1) bytes
+		rc += 16 + 8L * values.length ;
+		rc += 16 + 4L * coreCodes.length ;
+		rc += 16 + 4L * perimeterCodes.length ;
+		for( int[] column : perimeterCodes ) {
+			rc += 16 + 4L * column.length ;
+		}
+		return rc ;
+	}
+
 
 		
 
+	/**
+	 * A quick, bloom filter, test of the core labels. If this returns false the
+	 * core labels definitely do not match the filter the masks were made from. If it
+	 * returns true they may match, and the full test must still be done.
+	 * 
+	 * @see DataElementAttributes#coreSignatureMask(Map)
+	 * 
+	 * @param allOf every one of these bits must be in the core signature
+	 * @param anyOf for each of these at least one bit must be in the core signature
+	 * @return false if the element cannot match
+	 */
+	public boolean quickMatchesCoreKeys( long allOf, long[] anyOf ) {
+		if( (coreSignature & allOf) != allOf ) return false ;
+		for( long mask : anyOf ) {
+			if( (coreSignature & mask) == 0 ) return false ;
+		}
+		return true ;
+	}
+
 	/**
 	 * Identify whether the receiver's core element match any core
 	 * keys in the match test. If no core keys are present, a match 
@@ -280,13 +540,27 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @return a copy of the core values
 	 */
 	public String[] getCoreValues() {
-		return Arrays.copyOf( this.coreValues, this.coreValues.length ) ;
+		String[] rc = new String[ coreCodes.length ] ;
+		for( int i=0 ; i<rc.length ; i++ ) {
+			rc[i] = attributes.decode( i, coreCodes[i] ) ;
+		}
+		return rc ;
 	}
 
+	/**
+	 * Get all the labels (core and perimeter) of one value
+	 * 
+	 * @param index the DataElement value in the DataElement
+	 * @return the labels in attribute name order
+	 */
 	public String[] getAttributeValues( int index ) {
 		String[] rc = new String[ attributes.getAttributeNames().length ] ;
-        System.arraycopy(coreValues, 0, rc, 0, coreValues.length);
-        System.arraycopy(perimeterValues[index], 0, rc, coreValues.length, perimeterValues[index].length);
+		for( int i=0 ; i<coreCodes.length ; i++ ) {
+			rc[i] = attributes.decode( i, coreCodes[i] ) ;
+		}
+		for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+			rc[coreCodes.length+p] = attributes.decode( coreCodes.length+p, perimeterCodes[p][index] ) ;
+		}
 		return rc ;
 	}
 	/**
@@ -302,27 +576,122 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 		return createdTime ;
 	}
 
-	public int findIndex( DataElement other, int ix, String ... attributeNames ) {
+	/**
+	 * @return the version given by the source, or NO_SEQUENCE
+	 */
+	public long getSequence() {
+		return sequence ;
+	}
 
-		StringJoiner otherKey = new StringJoiner( SEPARATION_STRING ) ;
-        for (String attributeName : attributeNames) {
-            otherKey.add(other.getAttribute(ix, attributeName));
-        }
+	/**
+	 * Does another element hold exactly the same labels and values? i.e. would
+	 * it make no difference to any view if one replaced the other. The content 
+	 * hashes are compared first, so elements which differ are usually rejected
+	 * without looking at the contents. 
+	 * 
+	 * Elements with different attributes (even with the same names) are
+	 * never the same, their labels can't be compared by code.
+	 * 
+	 * @param other another element, usually with the same invariant key
+	 * @return true if the labels and values are identical
+	 */
+	public boolean sameContent( DataElement other ) {
+		if( other == this ) return true ;
+		if( other.attributes != attributes || other.size != size || other.getContentHash() != getContentHash() ) {
+			return false ;
+		}
+		if( !Arrays.equals( coreCodes, other.coreCodes ) ) return false ;
+		for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+			if( !Arrays.equals( perimeterCodes[p], 0, size, other.perimeterCodes[p], 0, size ) ) return false ;
+		}
+		return Arrays.equals( values, 0, size, other.values, 0, size ) ;
+	}
 
-		StringJoiner thisKey = new StringJoiner( SEPARATION_STRING ) ;
+	/**
+	 * A hash of the labels (codes) and values. Elements made by DataElementBuilder
+	 * and DataElementCodec have it worked out as they're built, and the store works
+	 * it out for any other element before saving it, so it's never written once the
+	 * element is shared. An element filled in by set works it out when first asked,
+	 * changing the element (e.g. set) forgets it.
+	 * 
+	 * @return the hash, never 0
+	 */
+	public int getContentHash() {
+		int rc = contentHash ;
+		if( rc == 0 ) {
+			rc = size ;
+			for( int code : coreCodes ) {
+				rc = 31 * rc + code ;
+			}
+			for( int[] column : perimeterCodes ) {
+				for( int i=0 ; i<size ; i++ ) {
+					rc = 31 * rc + column[i] ;
+				}
+			}
+			for( int i=0 ; i<size ; i++ ) {
+				rc = 31 * rc + Double.hashCode( values[i] ) ;
+			}
+			if( rc == 0 ) rc = 1 ;
+			contentHash = rc ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * Is the receiver the same, or a later, version of another element? If so
+	 * the other element is stale (or a duplicate) and shouldn't replace the receiver.
+	 * Only elements which both have a sequence can be compared, otherwise
+	 * the answer is always false, i.e. the latest to arrive wins.
+	 * 
+	 * @param other an element with the same invariant key
+	 * @return true if the other element should be dropped
+	 */
+	public boolean supersedes( DataElement other ) {
+		return sequence != NO_SEQUENCE && other.sequence != NO_SEQUENCE && sequence >= other.sequence ;
+	}
 
+	/**
+	 * Find the first value in the receiver whose labels match those of a value 
+	 * in another element. Only the named attributes are compared.
+	 * 
+	 * @param other the element to match
+	 * @param ix the index of the value in the other element
+	 * @param attributeNames the attributes to compare
+	 * @return the index of the matching value in the receiver, or -1 if none match
+	 */
+	public int findIndex( DataElement other, int ix, String ... attributeNames ) {
+		final int[] attributeIndices = new int[ attributeNames.length ] ;
+		final int[] otherAttributeIndices = new int[ attributeNames.length ] ;
+		for( int j=0 ; j<attributeNames.length ; j++ ) {
+			attributeIndices[j] = attributes.getAttributeIndex( attributeNames[j] ) ;
+			otherAttributeIndices[j] = other.attributes.getAttributeIndex( attributeNames[j] ) ;
+		}
+		final String[] otherLabels = new String[ attributeNames.length ] ;
+		for( int j=0 ; j<attributeNames.length ; j++ ) {
+			otherLabels[j] = other.getAttribute( ix, otherAttributeIndices[j], attributeNames[j] ) ;
+		}
 		for( int i=0 ; i<size() ; i++ ) {
-			thisKey.setEmptyValue( getAttribute(i, attributeNames[0] )) ;
-			for( int j=1 ; j<attributeNames.length ; j++ ) {
-				thisKey.add( getAttribute(i, attributeNames[j] ) ) ;
+			boolean matches = true ;
+			for( int j=0 ; j<attributeNames.length && matches ; j++ ) {
+				matches = otherLabels[j].equals( getAttribute( i, attributeIndices[j], attributeNames[j] ) ) ;
 			}
-			if( otherKey.toString().equals( thisKey.toString() ) )  {
+			if( matches ) {
 				return i ;
 			}
 		}
 		return -1 ;
 	}
 
+	/**
+	 * getAttribute with the attribute index already known
+	 */
+	private String getAttribute( int index, int ix, String attributeName ) {
+		String rc =  ix<0 ? attributeName : 
+					 ix<coreCodes.length ? attributes.decode( ix, coreCodes[ix] ) : 
+					 attributes.decode( ix, perimeterCodes[ix-coreCodes.length][index] ) ;
+		return rc == null ? "-" : rc ;
+	}
+
 	public DataElementAttributes getDataElementAttributes() {
 		return attributes ;
 	}
@@ -331,11 +700,93 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * This would be expected to be used for the  data element label
 	 * components - where cell label is indexed by multi-level keys
 	 * 
+	 * This is thread safe and doesn't use regular expressions. As with String.split
+	 * trailing empty components are dropped.
+	 * 
+	 * @param in the input key as a flat string
+	 * @return the array of components 
+	 */
+	static public String[] splitComponents( String in ) {
+		return splitComponents( in, SEPARATION_CHAR ) ;
+	}
+
+	/**
+	 * Split a key into separate components, on any separator. 
+	 * 
+	 * @see #splitComponents(String)
+	 * 
 	 * @param in the input key as a flat string
+	 * @param separator the character between components
 	 * @return the array of components 
 	 */
-	static public synchronized String[] splitComponents( String in ) {
-		return DataElement.SEPARATION_CHAR_PATTERN.split( in ) ;
+	static public String[] splitComponents( String in, char separator ) {
+		String[] rc = new String[ countComponents( in, separator ) ] ;
+		splitComponents( in, separator, rc ) ;
+		return rc ;
+	}
+
+	/**
+	 * Split a key into a reusable buffer. If the buffer is too small only the
+	 * first buffer.length components are stored, check the return value.
+	 * 
+	 * @see #splitComponents(String)
+	 * 
+	 * @param in the input key as a flat string
+	 * @param separator the character between components
+	 * @param buffer where to store the components
+	 * @return the number of components in the key
+	 */
+	static public int splitComponents( String in, char separator, String[] buffer ) {
+		final int numComponents = countComponents( in, separator ) ;
+		int start = 0 ;
+		for( int i=0 ; i<numComponents && i<buffer.length ; i++ ) {
+			int end = in.indexOf( separator, start ) ;
+			if( end < 0 ) end = in.length() ;
+			buffer[i] = in.substring( start, end ) ;
+			start = end + 1 ;
+		}
+		return numComponents ;
+	}
+
+	/**
+	 * Find where each component of a key starts, without making any Strings.
+	 * Component i is in.substring( offsets[i], offsets[i+1]-1 ), so the offsets
+	 * array needs one more entry than the number of components. If it's too 
+	 * small only the first offsets.length-1 components are stored.
+	 * 
+	 * @see #splitComponents(String)
+	 * 
+	 * @param in the input key as a flat string
+	 * @param separator the character between components
+	 * @param offsets where to store the start of each component
+	 * @return the number of components in the key
+	 */
+	static public int componentOffsets( String in, char separator, int[] offsets ) {
+		final int numComponents = countComponents( in, separator ) ;
+		int start = 0 ;
+		for( int i=0 ; i<=numComponents && i<offsets.length ; i++ ) {
+			offsets[i] = start ;
+			int end = in.indexOf( separator, start ) ;
+			start = (end<0 ? in.length() : end) + 1 ;
+		}
+		return numComponents ;
+	}
+
+	/**
+	 * How many components are in a key, ignoring any trailing empty ones
+	 */
+	static private int countComponents( String in, char separator ) {
+		if( in.isEmpty() ) return 1 ;		// same as String.split, an empty key is one empty component
+		int end = in.length() ;
+		while( end>0 && in.charAt(end-1) == separator ) {
+			end-- ;
+		}
+		if( end == 0 ) return 0 ;		// nothing but separators
+		int rc = 1 ;
+		for( int i=0 ; i<end ; i++ ) {
+			if( in.charAt(i) == separator ) rc++ ;
+		}
+		return rc ;
 	}
 
 	/**
@@ -357,61 +808,131 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	}
 	
 
+	/**
+	 * Find what changed between a previous version of this element and the receiver. 
+	 * Values are matched on their perimeter labels, so order doesn't matter. The 
+	 * result contains one value per changed set of labels:
+	 * <ul>
+	 * <li>labels in both, with a different value: the difference</li>
+	 * <li>labels only in the receiver: the receiver's value</li>
+	 * <li>labels only in the previous: the negated previous value</li>
+	 * </ul>
+	 * Unchanged values are left out, so an identical replacement gives an empty element.
+	 * 
+	 * Adding the result to a view has the same effect as adding the negated previous
+	 * and then the receiver.
+	 * 
+	 * This only works if both elements share the attributes and core labels, otherwise
+	 * null is returned and the caller must negate and replace as usual.
+	 * 
+	 * @param previous the element being replaced
+	 * @return the differences, or null if the elements can't be compared
+	 */
+	public DataElement difference( DataElement previous ) {
+		if( previous.attributes != attributes || !Arrays.equals( previous.coreCodes, coreCodes ) ) {
+			return null ;
+		}
+		return matchAndSubtract( previous, true ) ;
+	}
+
 	/**
 	 * Subtract the given element, value by value, from the receiver.
 	 * This returns a new DataElement - DataElements are immutable
 	 * 
+	 * Values are matched on their perimeter labels, so the elements may
+	 * be different sizes and in a different order. Labels only in the receiver 
+	 * keep their value, labels only in the other element get the negated
+	 * other value. The core labels are the receiver's.
+	 * 
 	 * @param other the data element to subtract from 'this'
 	 * @return a new copy of a data element.
 	 */
 	public DataElement subtract( DataElement other ) {
-		
-		DataElement rc;
-		if( size() == other.size() && attributes.getAttributeNameHash()==other.attributes.getAttributeNameHash() ) {
-			rc = new DataElement(size(), this.attributes, this.coreValues, getInvariantKey() ) ;
-			for( int i=0 ; i<rc.size() ; i++ ) {
-				rc.set( i, perimeterValues[i], values[i]-other.getValue(i) );
+		if( other.attributes != attributes ) {
+			other = other.withAttributes( attributes ) ;
+		}
+		if( size() == other.size() ) {
+			boolean sameOrder = true ;
+			for( int p=0 ; p<perimeterCodes.length && sameOrder ; p++ ) {
+				sameOrder = Arrays.equals( perimeterCodes[p], 0, size(), other.perimeterCodes[p], 0, size() ) ;
 			}
-		} else {
-			logger.warn( "Slow subtract detected. Expect bad performance (if too many) - [ untested!!!! ]" ) ;
-			//
-			// NOT TESTED   NOT TESTED   NOT TESTED    NOT TESTED   NOT TESTED
-			// 
-			// if the core values are different - we can't subtract ( check that later )
-			//
-			String[] attributeNames = getAttributeNames() ;
-			rc = new DataElement(size()+other.size(), this.attributes, this.coreValues, getInvariantKey() ) ;
-			int[] flagsOther = new int[ size() ] ;
-			int[] flagsThis = new int[ size() ] ;
-			for( int i=0 ; i<size() ; i++ ) {		
-				int matchingIndex = rc.findIndex(other, i, attributeNames) ;
-				if( matchingIndex >= 0 ) {
-					flagsOther[matchingIndex] = 1 ;
-					flagsThis[i] = 1 ;
-					rc.set( i, perimeterValues[i], values[i]-other.getValue(matchingIndex) );
+			if( sameOrder ) {
+				double[] newValues = new double[size()] ;
+				for( int i=0 ; i<newValues.length ; i++ ) {
+					newValues[i] = values[i]-other.getValue(i) ;
 				}
+				return new DataElement( this, size(), copyPerimeterColumns(size()), newValues, getInvariantKey() ) ;
 			}
-			
-			int numExtra = 0 ;
-			for( int i=0 ; i<size() ; i++ ) {
-				if( flagsThis[i] == 0 ) {
-					rc.set( flagsThis[i], perimeterValues[i], getValue(flagsThis[i]) );
+		}
+		return matchAndSubtract( other, false ) ;
+	}
+
+	/**
+	 * Match the values of the receiver and the other element on their perimeter labels, 
+	 * via a hash index of the other element, and subtract the other values. Both elements
+	 * must share attributes.
+	 * 
+	 * @param other the element to subtract
+	 * @param dropUnchanged leave out values where the result is zero
+	 * @return a new element, sized to the result
+	 */
+	private DataElement matchAndSubtract( DataElement other, boolean dropUnchanged ) {
+		PerimeterIndex index = new PerimeterIndex( other ) ;
+		// decide once which values are kept, so the result is sized exactly
+		// (comparing the difference to zero would disagree for unchanged infinities)
+		boolean[] keep = new boolean[ size() ] ;
+		int[] matches = new int[ size() ] ;
+		int numResults = 0 ;
+		for( int i=0 ; i<size() ; i++ ) {
+			matches[i] = index.take( this, i ) ;
+			keep[i] = !dropUnchanged || matches[i]<0 || values[i] != other.values[matches[i]] ;
+			if( keep[i] ) {
+				numResults++ ;
+			}
+		}
+		numResults += index.numUntaken() ;
+
+		int[][] newPerimeterCodes = new int[perimeterCodes.length][numResults] ;
+		double[] newValues = new double[numResults] ;
+		int ix = 0 ;
+		for( int i=0 ; i<size() ; i++ ) {
+			if( keep[i] ) {
+				for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+					newPerimeterCodes[p][ix] = perimeterCodes[p][i] ;
 				}
-				numExtra += flagsOther[i] ; 
+				newValues[ix++] = matches[i]<0 ? values[i] : values[i] - other.values[matches[i]] ;
 			}
-			
-			if( numExtra > 0 ) {
-				logger.info( "Extremely slow subtract detected. Try and subtract similar elements from each other." ) ;
-
-				rc = rc.clone( size() + numExtra ) ;			
-				for( int i=0 ; i<size() ; i++ ) {
-					if( flagsOther[i] == 0 ) {
-						numExtra-- ;
-						rc.set( numExtra, other.perimeterValues[flagsOther[i]], -other.getValue(flagsOther[flagsOther[i]]) );
-					}
+		}
+		for( int i=0 ; i<other.size() ; i++ ) {
+			if( !index.isTaken(i) ) {
+				for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+					newPerimeterCodes[p][ix] = other.perimeterCodes[p][i] ;
 				}
+				newValues[ix++] = -other.values[i] ;
+			}
+		}
+		return new DataElement( this, numResults, newPerimeterCodes, newValues, getInvariantKey() ) ;
+	}
+
+	/**
+	 * Copy of the receiver's values and perimeter labels, using different attributes.
+	 * Perimeter labels are matched by attribute name, any not in the receiver are null.
+	 * The core labels are not copied (they're not needed to subtract).
+	 */
+	private DataElement withAttributes( DataElementAttributes newAttributes ) {
+		DataElement rc = new DataElement( size(), newAttributes, encodeCoreValues( newAttributes, new String[0] ), invariantKey ) ;
+		final String[] names = newAttributes.getAttributeNames() ;
+		final int newNumCore = newAttributes.getNumCoreAttributes() ;
+		for( int p=0 ; p<rc.perimeterCodes.length ; p++ ) {
+			int ix = attributes.getAttributeIndex( names[newNumCore+p] ) - coreCodes.length ;
+			if( ix < 0 ) continue ;
+			int[] from = perimeterCodes[ix] ;
+			int[] to = rc.perimeterCodes[p] ;
+			for( int i=0 ; i<size() ; i++ ) {
+				to[i] = newAttributes.encode( newNumCore+p, attributes.decode( coreCodes.length+ix, from[i] ) ) ;
 			}
 		}
+		System.arraycopy( values, 0, rc.values, 0, size() ) ;
 		return rc ;
 	}
 	
@@ -424,11 +945,7 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @return a new DataElement with all values identical to the receiver
 	 */
 	public DataElement clone() {
-		DataElement rc = new DataElement(size(), this.attributes, this.coreValues, getInvariantKey() ) ;
-		for( int i=0 ; i<rc.size() ; i++ ) {
-			rc.set(i, perimeterValues[i], values[i] );
-		}
-		return rc ;		
+		return new DataElement( this, size(), copyPerimeterColumns(size()), Arrays.copyOf(values, size()), getInvariantKey() ) ;
 	}
 	
 	/**
@@ -447,7 +964,8 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 		
 		DataElement rc = new DataElement(size(), this.attributes, coreValues, invariantKey ) ;
 		for( int i=0 ; i<rc.size() ; i++ ) {
-			rc.set(i, perimeterValues[i], values[i] );
+			rc.setPerimeterCodes(i, this, i );
+			rc.set(i, values[i] );
 		}
 		return rc ;		
 	}
@@ -464,7 +982,7 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @return a new DataElement with all values identical to the receiver
 	 */
 	public DataElement clone( String invariantKey ) {
-		return this.clone( invariantKey, this.coreValues ) ;
+		return new DataElement( this, size(), copyPerimeterColumns(size()), Arrays.copyOf(values, size()), invariantKey ) ;
 	}
 	
 	/**
@@ -480,11 +998,11 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @return a new DataElement with all values identical to the receiver
 	 */
 	public DataElement clone( int newSize ) {
-		DataElement rc = new DataElement( newSize, this.attributes, coreValues, invariantKey ) ;
-		for( int i=0 ; i<rc.size() ; i++ ) {
-			rc.set(i, perimeterValues[i], values[i] );
+		double[] newValues = Arrays.copyOf( values, newSize ) ;
+		if( newSize > size() ) {
+			Arrays.fill( newValues, size(), newSize, 0.0 ) ;
 		}
-		return rc ;		
+		return new DataElement( this, newSize, copyPerimeterColumns(newSize), newValues, invariantKey ) ;
 	}
 	
 		
@@ -498,11 +1016,11 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * @return anew DataElement with all values having the opposite sign as the receiver
 	 */
 	public DataElement negatedCopy() {
-		DataElement rc = new DataElement(size(), this.attributes, this.coreValues, getInvariantKey() ) ;
-		for( int i=0 ; i<rc.size() ; i++ ) {
-			rc.set(i, perimeterValues[i], -values[i] );
+		double[] newValues = new double[size()] ;
+		for( int i=0 ; i<newValues.length ; i++ ) {
+			newValues[i] = -values[i] ;
 		}
-		return rc ;		
+		return new DataElement( this, size(), copyPerimeterColumns(size()), newValues, getInvariantKey() ) ;
 	}
 
 	/**
@@ -522,34 +1040,53 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 	 * 
 	 * The above output can be used to calculate a size from the weight as part of
 	 * a calculating view. <need a better example>
+	 * 
+	 * It's the named attribute that is changed to the new value. Before labels were
+	 * held as codes the first perimeter attribute was always changed, whichever was
+	 * named, that's only the same when the named attribute is the first.
 	 *   
 	 * @param invariantKey the unique ID of the key to find in the data store
-	 * @param attributeName the name of the attribute category to match
+	 * @param attributeName the name of the attribute category to match, must be a perimeter attribute
 	 * @param from the value of the attribute to match
 	 * @param to the new value of the attribute in the returned element
 	 * @return a new DataElement - if not matches are found this may be null 
+	 * @throws IllegalArgumentException if attributeName is not a perimeter attribute
 	 * 
 	 */
 	public DataElement filteredClone( String invariantKey, String attributeName, String from, String to ) {
 
-		String[][] newPerimeterValues = new String[size()][] ;
 		int[] valueIndices = new int[ size() ] ;
+		int perimeterIndex = attributes.getAttributeIndex( attributeName ) - coreCodes.length ;
+		if( perimeterIndex < 0 ) {
+			throw new IllegalArgumentException( attributeName + " is not a perimeter attribute, it can't be changed per value" ) ;
+		}
 		
 		DataElement rc = null ;
 		int ix = 0 ;
 		for( int i=0 ; i<size() ; i++ ) {
 			if( getAttribute(i, attributeName ).equals( from ) ) {
-				newPerimeterValues[ix] = Arrays.copyOf( perimeterValues[i],perimeterValues[i].length ) ;
-				newPerimeterValues[ix][0] = to ;
 				valueIndices[ix] = i ;
 				ix++ ;
 			}
 		}
 		if( ix > 0 ) {
-			rc = new DataElement(ix, this.attributes, this.coreValues, invariantKey ) ;
+			double[] newValues = new double[ix] ;
+			int[][] newPerimeterCodes = new int[perimeterCodes.length][ix] ;
 			for( int i=0 ; i<ix ; i++ ) {
-				rc.set(i, newPerimeterValues[i], values[valueIndices[i]] );				
+				newValues[i] = values[valueIndices[i]] ;
+			}
+			for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+				int[] column = perimeterCodes[p] ;
+				int[] newColumn = newPerimeterCodes[p] ;
+				if( p == perimeterIndex ) {
+					Arrays.fill( newColumn, attributes.encode( p+coreCodes.length, to ) ) ;
+				} else {
+					for( int i=0 ; i<ix ; i++ ) {
+						newColumn[i] = column[valueIndices[i]] ;
+					}
+				}
 			}
+			rc = new DataElement( this, ix, newPerimeterCodes, newValues, invariantKey ) ;
 		}
 		return rc ;		
 	}
@@ -566,4 +1103,76 @@ public class DataElement implements Cloneable, Comparable<DataElement> {
 		return invariantKey.hashCode();
 	}
 
+
+	/**
+	 * A hash index of the perimeter labels of an element, used to match values
+	 * in two elements that share the same attributes. It's an open addressing 
+	 * table of value indices, hashed on the perimeter codes. 
+	 * 
+	 * Each indexed value can be taken once, so duplicate labels are matched 
+	 * one to one.
+	 */
+	static final class PerimeterIndex {
+		private final DataElement element ;
+		private final int[] slots ;		// value index+1, 0 is empty
+		private final boolean[] taken ;
+		private int numTaken ;
+
+		PerimeterIndex( DataElement element ) {
+			this.element = element ;
+			this.taken = new boolean[ element.size() ] ;
+			this.slots = new int[ Integer.highestOneBit( Math.max( 2, element.size() ) * 2 ) * 2 ] ;
+			final int mask = slots.length - 1 ;
+			for( int i=0 ; i<element.size() ; i++ ) {
+				int slot = hash( element, i ) & mask ;
+				while( slots[slot] != 0 ) {
+					slot = (slot+1) & mask ;
+				}
+				slots[slot] = i+1 ;
+			}
+		}
+
+		/**
+		 * Find an untaken value with the same labels as a value in another 
+		 * element, and mark it as taken.
+		 * 
+		 * @return the index of the matching value, or -1 if there is none
+		 */
+		int take( DataElement other, int otherIndex ) {
+			final int mask = slots.length - 1 ;
+			for( int slot = hash( other, otherIndex ) & mask ; slots[slot] != 0 ; slot = (slot+1) & mask ) {
+				int ix = slots[slot] - 1 ;
+				if( !taken[ix] && sameLabels( other, otherIndex, ix ) ) {
+					taken[ix] = true ;
+					numTaken++ ;
+					return ix ;
+				}
+			}
+			return -1 ;
+		}
+
+		boolean isTaken( int index ) {
+			return taken[index] ;
+		}
+
+		int numUntaken() {
+			return taken.length - numTaken ;
+		}
+
+		private boolean sameLabels( DataElement other, int otherIndex, int index ) {
+			for( int p=0 ; p<element.perimeterCodes.length ; p++ ) {
+				if( element.perimeterCodes[p][index] != other.perimeterCodes[p][otherIndex] ) return false ;
+			}
+			return true ;
+		}
+
+		private static int hash( DataElement element, int index ) {
+			int h = 1 ;
+			for( int[] column : element.perimeterCodes ) {
+				h = 31 * h + column[index] ;
+			}
+			h *= 0x9E3779B9 ;
+			return h ^ (h >>> 16) ;
+		}
+	}
 }
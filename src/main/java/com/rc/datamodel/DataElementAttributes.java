@@ -1,5 +1,6 @@
 package com.rc.datamodel;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -18,6 +19,10 @@ public class DataElementAttributes {
 	private final int numCoreAttributes ;
 	private final String[] attributeNames;
 	private final long  attributeNamesHash ;
+	/**
+	 * One dictionary per attribute, used to encode labels as ints
+	 */
+	private final AttributeValueDictionary[] dictionaries ;
 
 	/**
 	 * Create the internal map of name -> index
@@ -36,6 +41,10 @@ public class DataElementAttributes {
 			attributeNamesHash ^= s.hashCode() ;
 		}
 		this.attributeNamesHash = attributeNamesHash ;
+		dictionaries = new AttributeValueDictionary[ attributeNames.length ] ;
+		for( int i=0 ; i<dictionaries.length ; i++ ) {
+			dictionaries[i] = new AttributeValueDictionary() ;
+		}
 	}
 	
 	/**
@@ -50,6 +59,32 @@ public class DataElementAttributes {
 		return ix!=null ? ix : -1 ;
 	}
 	
+	/**
+	 * Resolve an attribute name once, so it can be read from
+	 * elements without looking up the name each time.
+	 * 
+	 * @param attributeName
+	 * @return a handle to the attribute (invalid if the name is unknown)
+	 */
+	public AttributeHandle getHandle( String attributeName ) {
+		return new AttributeHandle( this, attributeName, getAttributeIndex( attributeName ) ) ;
+	}
+
+	/**
+	 * Resolve several attribute names
+	 * 
+	 * @see #getHandle(String)
+	 * @param attributeNames
+	 * @return a handle for each name, in the same order
+	 */
+	public AttributeHandle[] getHandles( String ... attributeNames ) {
+		AttributeHandle[] rc = new AttributeHandle[ attributeNames.length ] ;
+		for( int i=0 ; i<rc.length ; i++ ) {
+			rc[i] = getHandle( attributeNames[i] ) ;
+		}
+		return rc ;
+	}
+	
 	/**
 	 * Test for whether an attribute is a core attribute (once per element )
 	 * or a perimeter element (repeated per value within an element)
@@ -72,4 +107,114 @@ public class DataElementAttributes {
 	public long getAttributeNameHash() {
 		return attributeNamesHash ;
 	}
+
+	/**
+	 * How many attributes are core attributes. These are the first
+	 * attributes in the attribute names.
+	 * @return the number of core attributes
+	 */
+	public int getNumCoreAttributes() {
+		return numCoreAttributes ;
+	}
+
+	/**
+	 * How many attributes are perimeter attributes, these follow
+	 * the core attributes in the attribute names.
+	 * @return the number of perimeter attributes
+	 */
+	public int getNumPerimeterAttributes() {
+		return attributeNames.length - numCoreAttributes ;
+	}
+
+	/**
+	 * Make the 64 bit signature (a bloom filter) of a set of core labels. Each
+	 * label sets one bit, chosen by hashing the attribute name and label. A null 
+	 * label matches any filter, so it sets every bit.
+	 * 
+	 * @param coreCodes the encoded core labels
+	 * @return the signature
+	 */
+	public long coreSignature( int[] coreCodes ) {
+		long rc = 0L ;
+		for( int i=0 ; i<coreCodes.length ; i++ ) {
+			String value = decode( i, coreCodes[i] ) ;
+			rc |= value==null ? -1L : signatureBit( attributeNames[i], value ) ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * Make the masks to test a core signature against a set of filters. Only
+	 * filters on core attributes are used. A filter with one value goes into the 
+	 * allOf mask (element 0 of the return), a filter with several values gets 
+	 * its own anyOf mask (the remaining elements of the return).
+	 * 
+	 * @see DataElement#quickMatchesCoreKeys(long, long[])
+	 * 
+	 * @param filters keyed on attribute name, one of the values must match
+	 * @return the allOf mask followed by any anyOf masks
+	 */
+	public long[] coreSignatureMask( Map<String,String[]> filters ) {
+		long[] rc = new long[1] ;
+		if( filters == null ) return rc ;
+		for( var entry : filters.entrySet() ) {
+			int ix = getAttributeIndex( entry.getKey() ) ;
+			if( ix<0 || ix>=numCoreAttributes ) continue ;
+			String[] values = entry.getValue() ;
+			if( values.length == 1 ) {
+				rc[0] |= signatureBit( entry.getKey(), values[0] ) ;
+			} else if( values.length > 1 ) {
+				long mask = 0L ;
+				for( String value : values ) {
+					mask |= signatureBit( entry.getKey(), value ) ;
+				}
+				rc = Arrays.copyOf( rc, rc.length+1 ) ;
+				rc[rc.length-1] = mask ;
+			}
+		}
+		return rc ;
+	}
+
+	/**
+	 * Which bit does an attribute label set in a signature
+	 */
+	private static long signatureBit( String attributeName, String value ) {
+		int h = attributeName.hashCode() * 0x9E3779B9 + value.hashCode() ;
+		h ^= (h >>> 16) ;
+		h *= 0x85EBCA6B ;
+		h ^= (h >>> 13) ;
+		return 1L << (h & 63) ;
+	}
+
+	/**
+	 * Get the dictionary of labels used for an attribute
+	 *
+	 * @param attributeIndex the index of the attribute
+	 * @return the dictionary for that attribute
+	 */
+	public AttributeValueDictionary getDictionary( int attributeIndex ) {
+		return dictionaries[attributeIndex] ;
+	}
+
+	/**
+	 * Encode the label of an attribute into its dictionary code
+	 *
+	 * @param attributeIndex the index of the attribute
+	 * @param value the label
+	 * @return the code for the label
+	 */
+	public int encode( int attributeIndex, String value ) {
+		return dictionaries[attributeIndex].encode( value ) ;
+	}
+
+	/**
+	 * Decode a code back into the label of an attribute
+	 *
+	 * @param attributeIndex the index of the attribute
+	 * @param code a code returned by encode
+	 * @return the label
+	 */
+	public String decode( int attributeIndex, int code ) {
+		return dictionaries[attributeIndex].decode( code ) ;
+	}
 }
@@ -0,0 +1,278 @@
+package com.rc.datamodel;
+
+import java.util.Arrays;
+
+/**
+ * A reusable way to make DataElements. Labels are encoded through the
+ * attribute dictionaries as they're set, and the values are held in
+ * buffers which grow as needed and are kept between builds. A producer
+ * thread can keep one of these and build elements with very little garbage.
+ *
+ * A builder is <b>not</b> thread safe, use one per thread.
+ *
+ * example:
+ * <pre>
+ *
+ * 	builder.invariantKey( "6743" ).core( "6743", "Alpha" ) ;
+ * 	builder.perimeter( 0, "IR01" ).perimeter( 1, "1Y" ).add( 55.0 ) ;
+ * 	builder.perimeter( 0, "NPV" ).add( 170.0 ) ;
+ * 	DataElement de = builder.build() ;
+ *
+ * </pre>
+ *
+ * @author richard
+ * @see DataElement
+ */
+public class DataElementBuilder {
+
+	private final DataElementAttributes attributes ;
+	private final int numCore ;
+	private final int[] coreCodes ;
+	private final int[] rowCodes ;				// the perimeter labels of the next value
+	private int[][] perimeterCodes ;			// one column per perimeter attribute
+	private double[] values ;
+	private int size ;
+	private String invariantKey ;
+	private long sequence ;
+	private boolean sanitize ;
+	private boolean sumDuplicates ;
+
+	/**
+	 * Create a builder for elements with the given attributes
+	 *
+	 * @param attributes the attributes of every element built
+	 */
+	public DataElementBuilder( DataElementAttributes attributes ) {
+		this( attributes, 16 ) ;
+	}
+
+	/**
+	 * Create a builder, with room for a number of values before
+	 * the buffers need to grow.
+	 *
+	 * @param attributes the attributes of every element built
+	 * @param initialCapacity the expected number of values per element
+	 */
+	public DataElementBuilder( DataElementAttributes attributes, int initialCapacity ) {
+		this.attributes = attributes ;
+		this.numCore = attributes.getNumCoreAttributes() ;
+		this.coreCodes = new int[ numCore ] ;
+		this.rowCodes = new int[ attributes.getNumPerimeterAttributes() ] ;
+		this.perimeterCodes = new int[ rowCodes.length ][ Math.max(1, initialCapacity) ] ;
+		this.values = new double[ Math.max(1, initialCapacity) ] ;
+		reset() ;
+	}
+
+	/**
+	 * Set the invariant key of the next element
+	 *
+	 * @param invariantKey the unique ID of the element
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder invariantKey( String invariantKey ) {
+		this.invariantKey = invariantKey ;
+		return this ;
+	}
+
+	/**
+	 * Set the sequence number of the next element, a version which goes up
+	 * each time the source sends a replacement for the key.
+	 *
+	 * @see DataElement#supersedes(DataElement)
+	 * @param sequence the version, more than zero
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder sequence( long sequence ) {
+		if( sequence <= DataElement.NO_SEQUENCE ) {
+			throw new IllegalArgumentException( "Sequence " + sequence + " must be more than " + DataElement.NO_SEQUENCE ) ;
+		}
+		this.sequence = sequence ;
+		return this ;
+	}
+
+	/**
+	 * Set one core label
+	 *
+	 * @param coreIndex the index of the core attribute
+	 * @param label the label
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder core( int coreIndex, String label ) {
+		coreCodes[coreIndex] = attributes.encode( coreIndex, label ) ;
+		return this ;
+	}
+
+	/**
+	 * Set all the core labels, in attribute order
+	 *
+	 * @param labels the core labels
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder core( String ... labels ) {
+		for( int i=0 ; i<numCore ; i++ ) {
+			coreCodes[i] = attributes.encode( i, i<labels.length ? labels[i] : null ) ;
+		}
+		return this ;
+	}
+
+	/**
+	 * Set one perimeter label of the next value. Labels not set are null.
+	 *
+	 * @param perimeterIndex the index of the perimeter attribute (0 is the first perimeter attribute)
+	 * @param label the label
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder perimeter( int perimeterIndex, String label ) {
+		rowCodes[perimeterIndex] = attributes.encode( numCore+perimeterIndex, label ) ;
+		return this ;
+	}
+
+	/**
+	 * Add a value, labelled with the perimeter labels set since the last add.
+	 *
+	 * @param value the value
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder add( double value ) {
+		ensureCapacity( size+1 ) ;
+		for( int p=0 ; p<rowCodes.length ; p++ ) {
+			perimeterCodes[p][size] = rowCodes[p] ;
+		}
+		values[size++] = value ;
+		Arrays.fill( rowCodes, AttributeValueDictionary.NULL_CODE ) ;
+		return this ;
+	}
+
+	/**
+	 * Add a value with all its perimeter labels
+	 *
+	 * @param value the value
+	 * @param labels the perimeter labels, in attribute order
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder add( double value, String ... labels ) {
+		for( int p=0 ; p<rowCodes.length ; p++ ) {
+			rowCodes[p] = attributes.encode( numCore+p, p<labels.length ? labels[p] : null ) ;
+		}
+		return add( value ) ;
+	}
+
+	/**
+	 * How many values have been added
+	 *
+	 * @return the number of values so far
+	 */
+	public int size() {
+		return size ;
+	}
+
+	/**
+	 * Get a value that's already been added
+	 *
+	 * @param index which value
+	 * @return the value
+	 */
+	public double getValue( int index ) {
+		return values[index] ;
+	}
+
+	/**
+	 * Change a value that's already been added
+	 *
+	 * @param index which value
+	 * @param value the new value
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder setValue( int index, double value ) {
+		values[index] = value ;
+		return this ;
+	}
+
+	/**
+	 * Remove duplicate labels when building, either keeping the last
+	 * duplicate or summing them.
+	 *
+	 * @see DataElement#sanitize(boolean)
+	 * @param sumDuplicates add duplicates together rather than drop them
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder sanitize( boolean sumDuplicates ) {
+		this.sanitize = true ;
+		this.sumDuplicates = sumDuplicates ;
+		return this ;
+	}
+
+	/**
+	 * Load an existing element into the builder, replacing anything already
+	 * added. Useful to make a changed copy of an element.
+	 *
+	 * @param dataElement the element to copy, it must have the builder's attributes
+	 * @return this - to allow chaining
+	 */
+	public DataElementBuilder from( DataElement dataElement ) {
+		if( dataElement.getDataElementAttributes() != attributes ) {
+			throw new IllegalArgumentException( "DataElement " + dataElement.getInvariantKey() + " has different attributes to the builder" ) ;
+		}
+		size = 0 ;
+		ensureCapacity( dataElement.size() ) ;
+		invariantKey = dataElement.getInvariantKey() ;
+		sequence = dataElement.getSequence() ;
+		for( int i=0 ; i<numCore ; i++ ) {
+			coreCodes[i] = dataElement.getCoreCode( i ) ;
+		}
+		for( int p=0 ; p<rowCodes.length ; p++ ) {
+			for( int i=0 ; i<dataElement.size() ; i++ ) {
+				perimeterCodes[p][i] = dataElement.getPerimeterCode( p, i ) ;
+			}
+		}
+		for( int i=0 ; i<dataElement.size() ; i++ ) {
+			values[i] = dataElement.getValue( i ) ;
+		}
+		size = dataElement.size() ;
+		return this ;
+	}
+
+	/**
+	 * Make the element. The element gets its own arrays, sized to fit, and
+	 * the builder is reset ready for the next element.
+	 *
+	 * @return a new DataElement
+	 */
+	public DataElement build() {
+		int[][] newPerimeterCodes = new int[ rowCodes.length ][] ;
+		for( int p=0 ; p<rowCodes.length ; p++ ) {
+			newPerimeterCodes[p] = Arrays.copyOf( perimeterCodes[p], size ) ;
+		}
+		DataElement rc = new DataElement( attributes, invariantKey, System.currentTimeMillis(), sequence,
+								Arrays.copyOf( coreCodes, numCore ), newPerimeterCodes,
+								Arrays.copyOf( values, size ), size ) ;
+		if( sanitize ) {
+			rc.sanitize( sumDuplicates ) ;
+		}
+		rc.getContentHash() ;		// worked out now, while the element is ours alone
+		reset() ;
+		return rc ;
+	}
+
+	/**
+	 * Clear everything added, the buffers are kept for reuse. The
+	 * sanitize setting is kept too.
+	 */
+	public final void reset() {
+		size = 0 ;
+		invariantKey = null ;
+		sequence = DataElement.NO_SEQUENCE ;
+		Arrays.fill( coreCodes, AttributeValueDictionary.NULL_CODE ) ;
+		Arrays.fill( rowCodes, AttributeValueDictionary.NULL_CODE ) ;
+	}
+
+	private void ensureCapacity( int capacity ) {
+		if( capacity > values.length ) {
+			int newCapacity = Math.max( capacity, values.length*2 ) ;
+			values = Arrays.copyOf( values, newCapacity ) ;
+			for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+				perimeterCodes[p] = Arrays.copyOf( perimeterCodes[p], newCapacity ) ;
+			}
+		}
+	}
+}
@@ -0,0 +1,450 @@
+package com.rc.datamodel;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact binary form of DataElements. It's a stream of records, written to
+ * and read from ByteBuffers, so it can be used for files, sockets or snapshots
+ * without copying.
+ *
+ * There are two kinds of record:
+ * <ul>
+ * <li>schema - written once per DataElementAttributes. It holds the attribute names,
+ * and is identified by the attribute name hash (the schema id). As that's only a hash,
+ * a different schema with the same id is written again, replacing the first.</li>
+ * <li>element - the schema id, the labels of the element not yet written to the
+ * stream, the invariant key, created time, sequence, the stream codes of the labels
+ * and the values.</li>
+ * </ul>
+ * Labels are only ever sent once per stream, after that the codes are used. Stream
+ * codes are given out in the order labels are written, they're not the dictionary
+ * codes. Integers are written as variable length (7 bits per byte), doubles as 8 bytes.
+ *
+ * A Writer and Reader keep track of the labels that have been sent, so one of each is
+ * needed per stream.
+ *
+ * @author richard
+ * @see DataElementAttributes#getAttributeNameHash()
+ */
+public class DataElementCodec {
+
+	public static final int MAGIC = 0x4C414745 ;		// "LAGE"
+	public static final byte VERSION = 1 ;
+
+	private static final byte SCHEMA_RECORD = 1 ;
+	private static final byte ELEMENT_RECORD = 2 ;
+
+	private DataElementCodec() {
+	}
+
+	/**
+	 * Writes elements into a buffer. It remembers which schemas and labels have
+	 * been written, so call reset when starting a new stream.
+	 */
+	public static class Writer {
+		private final Map<Long,WriterSchema> schemas = new HashMap<>() ;
+
+		/**
+		 * Write an element (preceded by its schema if not yet written) into the buffer.
+		 * If the buffer doesn't have enough room nothing is written.
+		 *
+		 * @param buffer where to write the element
+		 * @param dataElement the element to write
+		 * @return false if the buffer was too small, the buffer is unchanged
+		 */
+		public boolean write( ByteBuffer buffer, DataElement dataElement ) {
+			final int start = buffer.position() ;
+			final DataElementAttributes attributes = dataElement.getDataElementAttributes() ;
+			final long schemaId = attributes.getAttributeNameHash() ;
+
+			// The id is only a hash, so a different schema with the same
+			// id is written again (and replaces the old one in the stream).
+			WriterSchema schema = schemas.get( schemaId ) ;
+			final boolean newSchema = schema == null || !schema.sameNames( attributes ) ;
+			if( newSchema ) {
+				schema = new WriterSchema( attributes ) ;
+			}
+			try {
+				if( newSchema ) {
+					writeSchema( buffer, attributes ) ;
+				}
+				writeElement( buffer, schema, dataElement ) ;
+			} catch( BufferOverflowException notEnoughRoom ) {
+				buffer.position( start ) ;
+				schema.forgetNewLabels() ;
+				return false ;
+			}
+			if( newSchema ) {
+				schemas.put( schemaId, schema ) ;
+			}
+			return true ;
+		}
+
+		/**
+		 * Forget all schemas and labels written. Used at the start of a new stream
+		 */
+		public void reset() {
+			schemas.clear() ;
+		}
+
+		private void writeSchema( ByteBuffer buffer, DataElementAttributes attributes ) {
+			String[] attributeNames = attributes.getAttributeNames() ;
+			buffer.put( SCHEMA_RECORD ) ;
+			buffer.putInt( MAGIC ) ;
+			buffer.put( VERSION ) ;
+			buffer.putLong( attributes.getAttributeNameHash() ) ;
+			putVarint( buffer, attributes.getNumCoreAttributes() ) ;
+			putVarint( buffer, attributeNames.length ) ;
+			for( String attributeName : attributeNames ) {
+				putString( buffer, attributeName ) ;
+			}
+		}
+
+		private void writeElement( ByteBuffer buffer, WriterSchema schema, DataElement dataElement ) {
+			final DataElementAttributes attributes = schema.attributes ;
+			final int numCore = attributes.getNumCoreAttributes() ;
+			final int numPerimeter = attributes.getNumPerimeterAttributes() ;
+			final int size = dataElement.size() ;
+
+			// Find the stream code of each label first, that finds the
+			// labels this element uses that haven't been written yet.
+			final DataElementAttributes elementAttributes = dataElement.getDataElementAttributes() ;
+			schema.startElement() ;
+			int[] coreCodes = new int[numCore] ;
+			for( int i=0 ; i<numCore ; i++ ) {
+				coreCodes[i] = schema.streamCode( elementAttributes, i, dataElement.getCoreCode(i) ) ;
+			}
+			int[][] perimeterCodes = new int[numPerimeter][size] ;
+			for( int p=0 ; p<numPerimeter ; p++ ) {
+				for( int i=0 ; i<size ; i++ ) {
+					perimeterCodes[p][i] = schema.streamCode( elementAttributes, numCore+p, dataElement.getPerimeterCode(p, i) ) ;
+				}
+			}
+
+			buffer.put( ELEMENT_RECORD ) ;
+			buffer.putLong( attributes.getAttributeNameHash() ) ;
+			for( List<String> labels : schema.newLabels ) {
+				putVarint( buffer, labels.size() ) ;
+				for( String label : labels ) {
+					putString( buffer, label ) ;
+				}
+			}
+			putString( buffer, dataElement.getInvariantKey() ) ;
+			buffer.putLong( dataElement.getCreatedTime() ) ;
+			putVarlong( buffer, dataElement.getSequence() ) ;
+			putVarint( buffer, size ) ;
+			for( int code : coreCodes ) {
+				putVarint( buffer, code ) ;
+			}
+			for( int p=0 ; p<numPerimeter ; p++ ) {
+				for( int i=0 ; i<size ; i++ ) {
+					putVarint( buffer, perimeterCodes[p][i] ) ;
+				}
+			}
+			for( int i=0 ; i<size ; i++ ) {
+				buffer.putDouble( dataElement.getValue(i) ) ;
+			}
+		}
+	}
+
+	/**
+	 * Reads elements from a buffer. It remembers the schemas and labels that
+	 * have been read, so one is needed per stream.
+	 */
+	public static class Reader {
+		private final Map<Long,DataElementAttributes> knownAttributes = new HashMap<>() ;
+		private final Map<Long,ReaderSchema> schemas = new HashMap<>() ;
+
+		/**
+		 * Use an existing set of attributes for any schema with the same id. Elements
+		 * read will share the attributes (and dictionaries) with elements already
+		 * in memory. Otherwise new attributes are created for each schema read.
+		 *
+		 * @param attributes the attributes to use
+		 */
+		public void register( DataElementAttributes attributes ) {
+			knownAttributes.put( attributes.getAttributeNameHash(), attributes ) ;
+		}
+
+		/**
+		 * Read the next element from the buffer. Schema records are read on the way.
+		 * If the buffer ends part way through a record the buffer is left at the start
+		 * of that record, so it can be refilled and read again.
+		 *
+		 * @param buffer where to read from
+		 * @return the element, or null if there's no complete element in the buffer
+		 */
+		public DataElement read( ByteBuffer buffer ) {
+			while( buffer.hasRemaining() ) {
+				final int start = buffer.position() ;
+				try {
+					byte recordType = buffer.get() ;
+					if( recordType == SCHEMA_RECORD ) {
+						readSchema( buffer ) ;
+					} else if( recordType == ELEMENT_RECORD ) {
+						return readElement( buffer ) ;
+					} else {
+						throw new IllegalStateException( "Invalid record type " + recordType + " at position " + start ) ;
+					}
+				} catch( BufferUnderflowException incompleteRecord ) {
+					buffer.position( start ) ;
+					return null ;
+				}
+			}
+			return null ;
+		}
+
+		/**
+		 * Forget all schemas and labels read. Used at the start of a new stream.
+		 * Registered attributes are kept.
+		 */
+		public void reset() {
+			schemas.clear() ;
+		}
+
+		private void readSchema( ByteBuffer buffer ) {
+			int magic = buffer.getInt() ;
+			byte version = buffer.get() ;
+			if( magic != MAGIC || version != VERSION ) {
+				throw new IllegalStateException( "Unsupported DataElement encoding, version " + version ) ;
+			}
+			long schemaId = buffer.getLong() ;
+			int numCoreAttributes = getVarint( buffer ) ;
+			String[] attributeNames = new String[ getVarint( buffer ) ] ;
+			for( int i=0 ; i<attributeNames.length ; i++ ) {
+				attributeNames[i] = getString( buffer ) ;
+			}
+			DataElementAttributes attributes = knownAttributes.get( schemaId ) ;
+			if( attributes == null
+					|| attributes.getNumCoreAttributes() != numCoreAttributes
+					|| !Arrays.equals( attributes.getAttributeNames(), attributeNames ) ) {
+				attributes = new DataElementAttributes( attributeNames, numCoreAttributes ) ;
+			}
+			schemas.put( schemaId, new ReaderSchema( attributes ) ) ;
+		}
+
+		private DataElement readElement( ByteBuffer buffer ) {
+			long schemaId = buffer.getLong() ;
+			ReaderSchema schema = schemas.get( schemaId ) ;
+			if( schema == null ) {
+				throw new IllegalStateException( "DataElement read before its schema " + schemaId ) ;
+			}
+			final DataElementAttributes attributes = schema.attributes ;
+			final int numCore = attributes.getNumCoreAttributes() ;
+			final int numPerimeter = attributes.getNumPerimeterAttributes() ;
+
+			// Read everything before changing any state, in case the record is incomplete
+			List<List<String>> newLabels = new ArrayList<>( schema.codes.length ) ;
+			for( int ix=0 ; ix<schema.codes.length ; ix++ ) {
+				int numNewLabels = getVarint( buffer ) ;
+				List<String> labels = new ArrayList<>( numNewLabels ) ;
+				for( int i=0 ; i<numNewLabels ; i++ ) {
+					labels.add( getString( buffer ) ) ;
+				}
+				newLabels.add( labels ) ;
+			}
+			String invariantKey = getString( buffer ) ;
+			long createdTime = buffer.getLong() ;
+			long sequence = getVarlong( buffer ) ;
+			int size = getVarint( buffer ) ;
+			int[] coreCodes = new int[numCore] ;
+			for( int i=0 ; i<numCore ; i++ ) {
+				coreCodes[i] = getVarint( buffer ) ;
+			}
+			int[][] perimeterCodes = new int[numPerimeter][size] ;
+			for( int p=0 ; p<numPerimeter ; p++ ) {
+				for( int i=0 ; i<size ; i++ ) {
+					perimeterCodes[p][i] = getVarint( buffer ) ;
+				}
+			}
+			double[] values = new double[size] ;
+			for( int i=0 ; i<size ; i++ ) {
+				values[i] = buffer.getDouble() ;
+			}
+
+			// Now the whole record is read, learn the labels and translate the codes
+			for( int ix=0 ; ix<schema.codes.length ; ix++ ) {
+				for( String label : newLabels.get(ix) ) {
+					schema.addLabel( ix, attributes.encode( ix, label ) ) ;
+				}
+			}
+			for( int i=0 ; i<numCore ; i++ ) {
+				coreCodes[i] = schema.localCode( i, coreCodes[i] ) ;
+			}
+			for( int p=0 ; p<numPerimeter ; p++ ) {
+				int[] column = perimeterCodes[p] ;
+				for( int i=0 ; i<size ; i++ ) {
+					column[i] = schema.localCode( numCore+p, column[i] ) ;
+				}
+			}
+			DataElement rc = new DataElement( attributes, invariantKey, createdTime, sequence, coreCodes, perimeterCodes, values, size ) ;
+			rc.getContentHash() ;		// worked out now, while the element is ours alone
+			return rc ;
+		}
+	}
+
+	// What a writer has sent for one schema: the stream code of each
+	// label written, by label and by the schema attributes' own code.
+	// Stream codes are shifted by one, so 0 is the null label.
+	static final class WriterSchema {
+		final DataElementAttributes attributes ;
+		final List<Map<String,Integer>> byLabel ;
+		final int[][] byCode ;						// 0 if not written yet
+		final List<List<String>> newLabels ;		// written by the current element
+		WriterSchema( DataElementAttributes attributes ) {
+			this.attributes = attributes ;
+			int numAttributes = attributes.getAttributeNames().length ;
+			this.byLabel = new ArrayList<>( numAttributes ) ;
+			this.byCode = new int[numAttributes][16] ;
+			this.newLabels = new ArrayList<>( numAttributes ) ;
+			for( int ix=0 ; ix<numAttributes ; ix++ ) {
+				byLabel.add( new HashMap<>() ) ;
+				newLabels.add( new ArrayList<>() ) ;
+			}
+		}
+		boolean sameNames( DataElementAttributes other ) {
+			return other == attributes 
+					|| ( other.getNumCoreAttributes() == attributes.getNumCoreAttributes() 
+						&& Arrays.equals( other.getAttributeNames(), attributes.getAttributeNames() ) ) ;
+		}
+		void startElement() {
+			for( List<String> labels : newLabels ) {
+				labels.clear() ;
+			}
+		}
+		// An element's code as a stream code. A different attributes instance
+		// with the same names has its own codes, so it goes by label.
+		int streamCode( DataElementAttributes elementAttributes, int attributeIndex, int code ) {
+			if( code == AttributeValueDictionary.NULL_CODE ) return 0 ;
+			final boolean own = elementAttributes == attributes ;
+			if( own && code < byCode[attributeIndex].length && byCode[attributeIndex][code] != 0 ) {
+				return byCode[attributeIndex][code] ;
+			}
+			String label = elementAttributes.decode( attributeIndex, code ) ;
+			Map<String,Integer> written = byLabel.get( attributeIndex ) ;
+			Integer streamCode = written.get( label ) ;
+			if( streamCode == null ) {
+				streamCode = written.size() + 1 ;
+				written.put( label, streamCode ) ;
+				newLabels.get( attributeIndex ).add( label ) ;
+			}
+			if( own ) {
+				if( code >= byCode[attributeIndex].length ) {
+					byCode[attributeIndex] = Arrays.copyOf( byCode[attributeIndex], Math.max( code+1, byCode[attributeIndex].length*2 ) ) ;
+				}
+				byCode[attributeIndex][code] = streamCode ;
+			}
+			return streamCode ;
+		}
+		// The current element wasn't written, so neither were its new labels
+		void forgetNewLabels() {
+			for( int ix=0 ; ix<newLabels.size() ; ix++ ) {
+				for( String label : newLabels.get(ix) ) {
+					byLabel.get(ix).remove( label ) ;
+					int code = attributes.getDictionary(ix).codeOf( label ) ;
+					if( code >= 0 && code < byCode[ix].length ) {
+						byCode[ix][code] = 0 ;
+					}
+				}
+				newLabels.get(ix).clear() ;
+			}
+		}
+	}
+
+	// What a reader has seen for one schema: the local code of
+	// each label code in the stream.
+	static final class ReaderSchema {
+		final DataElementAttributes attributes ;
+		final int[][] codes ;
+		final int[] numCodes ;
+		ReaderSchema( DataElementAttributes attributes ) {
+			this.attributes = attributes ;
+			int numAttributes = attributes.getAttributeNames().length ;
+			this.codes = new int[numAttributes][16] ;
+			this.numCodes = new int[numAttributes] ;
+		}
+		void addLabel( int attributeIndex, int localCode ) {
+			if( numCodes[attributeIndex] == codes[attributeIndex].length ) {
+				codes[attributeIndex] = Arrays.copyOf( codes[attributeIndex], numCodes[attributeIndex]*2 ) ;
+			}
+			codes[attributeIndex][numCodes[attributeIndex]++] = localCode ;
+		}
+		// stream codes are shifted by one, so 0 is the null label
+		int localCode( int attributeIndex, int streamCode ) {
+			if( streamCode == 0 ) return AttributeValueDictionary.NULL_CODE ;
+			if( streamCode > numCodes[attributeIndex] ) {
+				throw new IllegalStateException( "Label code " + streamCode + " used before it was defined" ) ;
+			}
+			return codes[attributeIndex][streamCode-1] ;
+		}
+	}
+
+	/**
+	 * Write an unsigned int using 7 bits per byte, the high bit means more bytes follow
+	 */
+	static void putVarint( ByteBuffer buffer, int value ) {
+		while( (value & ~0x7F) != 0 ) {
+			buffer.put( (byte)((value & 0x7F) | 0x80) ) ;
+			value >>>= 7 ;
+		}
+		buffer.put( (byte)value ) ;
+	}
+
+	static int getVarint( ByteBuffer buffer ) {
+		int rc = 0 ;
+		for( int shift=0 ; ; shift+=7 ) {
+			byte b = buffer.get() ;
+			rc |= (b & 0x7F) << shift ;
+			if( (b & 0x80) == 0 ) return rc ;
+		}
+	}
+
+	/**
+	 * As putVarint, for an unsigned long
+	 */
+	static void putVarlong( ByteBuffer buffer, long value ) {
+		while( (value & ~0x7FL) != 0 ) {
+			buffer.put( (byte)((value & 0x7F) | 0x80) ) ;
+			value >>>= 7 ;
+		}
+		buffer.put( (byte)value ) ;
+	}
+
+	static long getVarlong( ByteBuffer buffer ) {
+		long rc = 0 ;
+		for( int shift=0 ; ; shift+=7 ) {
+			byte b = buffer.get() ;
+			rc |= (long)(b & 0x7F) << shift ;
+			if( (b & 0x80) == 0 ) return rc ;
+		}
+	}
+
+	static void putString( ByteBuffer buffer, String s ) {
+		byte[] bytes = s.getBytes( StandardCharsets.UTF_8 ) ;
+		putVarint( buffer, bytes.length ) ;
+		buffer.put( bytes ) ;
+	}
+
+	static String getString( ByteBuffer buffer ) {
+		int length = getVarint( buffer ) ;
+		if( buffer.remaining() < length ) throw new BufferUnderflowException() ;
+		String rc ;
+		if( buffer.hasArray() ) {
+			rc = new String( buffer.array(), buffer.arrayOffset()+buffer.position(), length, StandardCharsets.UTF_8 ) ;
+			buffer.position( buffer.position()+length ) ;
+		} else {
+			byte[] bytes = new byte[length] ;
+			buffer.get( bytes ) ;
+			rc = new String( bytes, StandardCharsets.UTF_8 ) ;
+		}
+		return rc ;
+	}
+}
@@ -0,0 +1,72 @@
+package com.rc.datamodel;
+
+import java.util.function.Consumer;
+
+/**
+ * Where the store keeps the current DataElement for each invariant key.
+ * Implementations must be safe for concurrent use, though puts of the
+ * same key are never made concurrently.
+ *
+ * @author richard
+ * @see HeapDataElementMap
+ * @see OffHeapDataElementMap
+ */
+public interface DataElementMap {
+
+	/**
+	 * Save an element, replacing any element with the same invariant key,
+	 * unless the element held supersedes it (is the same or a later version).
+	 * The check and the replacement are one atomic step.
+	 *
+	 * @see DataElement#supersedes(DataElement)
+	 * @param dataElement the element to save
+	 * @return the element replaced, or null if the key is new. If the element returned
+	 * supersedes dataElement nothing was saved.
+	 */
+	DataElement put( DataElement dataElement ) ;
+
+	/**
+	 * @param invariantKey
+	 * @return the element with the key, or null if not found
+	 */
+	DataElement get( String invariantKey ) ;
+
+	/**
+	 * Remove the element held for a key, but only if it's old enough.
+	 * Used to expire elements without removing a newer replacement.
+	 *
+	 * @param invariantKey the key to remove
+	 * @param latestCreatedTime remove the element if it was created at or before this time
+	 * @return the element removed, or null if nothing was removed
+	 */
+	DataElement removeIfOlder( String invariantKey, long latestCreatedTime ) ;
+
+	/**
+	 * @return how many elements (different invariant keys) are held
+	 */
+	int size() ;
+
+	/**
+	 * @return a rough count of the java heap used by the elements held
+	 */
+	long getEstimatedHeapBytes() ;
+
+	/**
+	 * Remove all elements
+	 */
+	void clear() ;
+
+	/**
+	 * @return any one element, or null if empty
+	 */
+	DataElement any() ;
+
+	/**
+	 * Call the action with every element. With more elements than the
+	 * threshold the action may be called on several threads at once.
+	 *
+	 * @param parallelismThreshold the number of elements needed to go parallel, Long.MAX_VALUE to stay on this thread
+	 * @param action called with each element
+	 */
+	void forEach( long parallelismThreshold, Consumer<DataElement> action ) ;
+}
@@ -0,0 +1,111 @@
+package com.rc.datamodel;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * The usual DataElementMap, a large ConcurrentHashMap of the elements.
+ *
+ * @author richard
+ */
+public class HeapDataElementMap implements DataElementMap {
+
+	private final static long ENTRY_BYTES = 40 ;		// map node & table slot
+
+	private final ConcurrentHashMap<String,DataElement> elements ;
+	private final LongAdder estimatedBytes ;
+
+	public HeapDataElementMap( int initialCapacity ) {
+		this.elements = new ConcurrentHashMap<>( initialCapacity ) ;
+		this.estimatedBytes = new LongAdder() ;
+	}
+
+	@Override
+	public DataElement put( DataElement dataElement ) {
+		DataElement previous ;
+		if( dataElement.getSequence() == DataElement.NO_SEQUENCE ) {
+			previous = elements.put( dataElement.getInvariantKey(), dataElement ) ;
+		} else {
+			previous = putIfNewer( dataElement ) ;
+			if( previous != null && previous.supersedes( dataElement ) ) {
+				return previous ;
+			}
+		}
+		estimatedBytes.add( dataElement.getEstimatedBytes() - (previous==null ? -ENTRY_BYTES : previous.getEstimatedBytes()) ) ;
+		return previous ;
+	}
+
+	// Compare and set, retried if something else (e.g. expiry) changes the key in between
+	private DataElement putIfNewer( DataElement dataElement ) {
+		final String invariantKey = dataElement.getInvariantKey() ;
+		for( ; ; ) {
+			DataElement current = elements.get( invariantKey ) ;
+			if( current == null ) {
+				current = elements.putIfAbsent( invariantKey, dataElement ) ;
+				if( current == null ) {
+					return null ;
+				}
+			}
+			if( current.supersedes( dataElement ) ) {
+				return current ;
+			}
+			if( elements.replace( invariantKey, current, dataElement ) ) {
+				return current ;
+			}
+		}
+	}
+
+	@Override
+	public DataElement get( String invariantKey ) {
+		return elements.get( invariantKey ) ;
+	}
+
+	@Override
+	public DataElement removeIfOlder( String invariantKey, long latestCreatedTime ) {
+		DataElement[] removed = new DataElement[1] ;
+		elements.computeIfPresent( invariantKey, (k,current) -> {
+			if( current.getCreatedTime() > latestCreatedTime ) {
+				return current ;
+			}
+			removed[0] = current ;
+			return null ;
+		} ) ;
+		if( removed[0] != null ) {
+			estimatedBytes.add( -ENTRY_BYTES - removed[0].getEstimatedBytes() ) ;
+		}
+		return removed[0] ;
+	}
+
+	@Override
+	public int size() {
+		return elements.size() ;
+	}
+
+	@Override
+	public long getEstimatedHeapBytes() {
+		return estimatedBytes.sum() + 4L * elements.size() ;
+	}
+
+	@Override
+	public void clear() {
+		elements.clear() ;
+		estimatedBytes.reset() ;
+	}
+
+	@Override
+	public DataElement any() {
+		Iterator<DataElement> iterator = elements.values().iterator() ;
+		return iterator.hasNext() ? iterator.next() : null ;
+	}
+
+	@Override
+	public void forEach( long parallelismThreshold, Consumer<DataElement> action ) {
+		elements.forEachValue( parallelismThreshold, action ) ;
+	}
+
+	public String toString() {
+		return "Heap elements: " + elements.size() ;
+	}
+}
@@ -0,0 +1,495 @@
+package com.rc.datamodel;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A DataElementMap which keeps the elements outside the java heap, so a
+ * very large store doesn't make the garbage collector work any harder.
+ *
+ * Each element is encoded (labels as their dictionary codes) and appended
+ * to large direct buffers (segments). An open addressing hash table, also off
+ * heap, maps the invariant key to where the element is. A DataElement is only
+ * made (decoded) when it's asked for, e.g. by get or a replacement.
+ *
+ * A replaced (or removed) element leaves its old bytes in the segment, when more
+ * than half a stripe is garbage the live elements are copied to new segments.
+ * Each stripe's first segment is small, each new one is twice the size of the
+ * last up to the segment size, so a small map doesn't reserve much memory.
+ *
+ * The map is split into stripes by key hash, each with its own lock, index
+ * and segments so puts of different keys don't all queue on one lock.
+ *
+ * Index slot layout (16 bytes)
+ * <pre>
+ *   int hash  |  int segment+1 (0 = empty)  |  int offset  |  int length
+ * </pre>
+ * Record layout
+ * <pre>
+ *   varint attributes id | string invariantKey | long createdTime | varlong sequence | varint size |
+ *   varint core code+1 ...  | varint perimeter code+1 (column by column) ... | double value ...
+ * </pre>
+ *
+ * @author richard
+ * @see DataElementMap
+ */
+public class OffHeapDataElementMap implements DataElementMap {
+
+	final static Logger logger = LoggerFactory.getLogger( OffHeapDataElementMap.class ) ;
+
+	private static final int DEFAULT_STRIPES = 16 ;
+	private static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024 ;
+	private static final int FIRST_SEGMENT_SIZE = 64 * 1024 ;	// per stripe, segments double from here
+	private static final int INITIAL_SLOTS = 1024 ;			// per stripe, a power of 2
+	private static final int SLOT_BYTES = 16 ;
+	private static final float MAX_LOAD = 0.6f ;
+
+	private final Stripe[] stripes ;
+	private final int segmentSize ;
+	private volatile DataElementAttributes[] knownAttributes ;		// the record's attributes id is an index into this
+	private final ThreadLocal<ByteBuffer> scratch ;					// where records are encoded before copying off heap
+
+	public OffHeapDataElementMap() {
+		this( DEFAULT_STRIPES, DEFAULT_SEGMENT_SIZE ) ;
+	}
+
+	/**
+	 * @param numStripes how many independent parts, rounded up to a power of 2
+	 * @param segmentSize the largest off heap buffer, they start smaller
+	 */
+	public OffHeapDataElementMap( int numStripes, int segmentSize ) {
+		int n = 1 ;
+		while( n < numStripes ) n <<= 1 ;
+		this.segmentSize = segmentSize ;
+		this.stripes = new Stripe[ n ] ;
+		for( int i=0 ; i<n ; i++ ) {
+			stripes[i] = new Stripe() ;
+		}
+		this.knownAttributes = new DataElementAttributes[0] ;
+		this.scratch = ThreadLocal.withInitial( () -> ByteBuffer.allocate( 4096 ) ) ;
+		logger.info( "Off heap element map using {} stripes of up to {}Mb segments", n, segmentSize/0x100000 ) ;
+	}
+
+	@Override
+	public DataElement put( DataElement dataElement ) {
+		int id = attributesId( dataElement.getDataElementAttributes() ) ;
+		ByteBuffer record = encode( dataElement, id ) ;
+		int hash = hash( dataElement.getInvariantKey() ) ;
+		return stripeOf( hash ).put( hash, dataElement, record ) ;
+	}
+
+	@Override
+	public DataElement get( String invariantKey ) {
+		int hash = hash( invariantKey ) ;
+		return stripeOf( hash ).get( hash, invariantKey ) ;
+	}
+
+	@Override
+	public DataElement removeIfOlder( String invariantKey, long latestCreatedTime ) {
+		int hash = hash( invariantKey ) ;
+		return stripeOf( hash ).removeIfOlder( hash, invariantKey, latestCreatedTime ) ;
+	}
+
+	@Override
+	public int size() {
+		int rc = 0 ;
+		for( Stripe stripe : stripes ) {
+			rc += stripe.size ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * The elements are off heap, only the attribute dictionaries (shared
+	 * with everything else) are on the heap.
+	 */
+	@Override
+	public long getEstimatedHeapBytes() {
+		return 0 ;
+	}
+
+	@Override
+	public void clear() {
+		for( Stripe stripe : stripes ) {
+			stripe.clear() ;
+		}
+	}
+
+	@Override
+	public DataElement any() {
+		for( Stripe stripe : stripes ) {
+			DataElement rc = stripe.any() ;
+			if( rc != null ) return rc ;
+		}
+		return null ;
+	}
+
+	@Override
+	public void forEach( long parallelismThreshold, Consumer<DataElement> action ) {
+		if( size() > parallelismThreshold ) {
+			Arrays.stream( stripes ).parallel().forEach( stripe -> stripe.forEach( action ) ) ;
+		} else {
+			for( Stripe stripe : stripes ) {
+				stripe.forEach( action ) ;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of bytes allocated off heap, including the indices
+	 */
+	public long getAllocatedBytes() {
+		long rc = 0 ;
+		for( Stripe stripe : stripes ) {
+			rc += stripe.allocatedBytes + stripe.index.capacity() ;
+		}
+		return rc ;
+	}
+
+	/**
+	 * @return the number of bytes used by current (not replaced) elements
+	 */
+	public long getLiveBytes() {
+		long rc = 0 ;
+		for( Stripe stripe : stripes ) {
+			rc += stripe.liveBytes ;
+		}
+		return rc ;
+	}
+
+	public String toString() {
+		return "Off heap elements: " + size() + " using " + getLiveBytes()/0x100000 + "Mb of " + getAllocatedBytes()/0x100000 + "Mb" ;
+	}
+
+	private Stripe stripeOf( int hash ) {
+		return stripes[ ((hash * 0x9E3779B9) >>> 16) & (stripes.length-1) ] ;
+	}
+
+	private static int hash( String invariantKey ) {
+		int h = invariantKey.hashCode() ;
+		return h ^ (h >>> 16) ;
+	}
+
+	private int attributesId( DataElementAttributes attributes ) {
+		DataElementAttributes[] known = knownAttributes ;
+		for( int i=0 ; i<known.length ; i++ ) {
+			if( known[i] == attributes ) return i ;
+		}
+		synchronized( this ) {
+			known = knownAttributes ;
+			for( int i=0 ; i<known.length ; i++ ) {
+				if( known[i] == attributes ) return i ;
+			}
+			known = Arrays.copyOf( known, known.length+1 ) ;
+			known[known.length-1] = attributes ;
+			knownAttributes = known ;
+			return known.length-1 ;
+		}
+	}
+
+	// Encode into this thread's scratch buffer (made bigger if needed), ready to read
+	private ByteBuffer encode( DataElement dataElement, int id ) {
+		ByteBuffer buffer = scratch.get() ;
+		for( ; ; ) {
+			buffer.clear() ;
+			try {
+				DataElementCodec.putVarint( buffer, id ) ;
+				DataElementCodec.putString( buffer, dataElement.getInvariantKey() ) ;
+				buffer.putLong( dataElement.getCreatedTime() ) ;
+				DataElementCodec.putVarlong( buffer, dataElement.getSequence() ) ;
+				DataElementCodec.putVarint( buffer, dataElement.size() ) ;
+				DataElementAttributes attributes = dataElement.getDataElementAttributes() ;
+				for( int c=0 ; c<attributes.getNumCoreAttributes() ; c++ ) {
+					DataElementCodec.putVarint( buffer, dataElement.getCoreCode( c ) + 1 ) ;
+				}
+				for( int p=0 ; p<attributes.getNumPerimeterAttributes() ; p++ ) {
+					for( int i=0 ; i<dataElement.size() ; i++ ) {
+						DataElementCodec.putVarint( buffer, dataElement.getPerimeterCode( p, i ) + 1 ) ;
+					}
+				}
+				for( int i=0 ; i<dataElement.size() ; i++ ) {
+					buffer.putDouble( dataElement.getValue( i ) ) ;
+				}
+				buffer.flip() ;
+				return buffer ;
+			} catch( BufferOverflowException e ) {
+				buffer = ByteBuffer.allocate( buffer.capacity() * 2 ) ;
+				scratch.set( buffer ) ;
+			}
+		}
+	}
+
+	private DataElement decode( ByteBuffer buffer ) {
+		DataElementAttributes attributes = knownAttributes[ DataElementCodec.getVarint( buffer ) ] ;
+		String invariantKey = DataElementCodec.getString( buffer ) ;
+		long createdTime = buffer.getLong() ;
+		long sequence = DataElementCodec.getVarlong( buffer ) ;
+		int size = DataElementCodec.getVarint( buffer ) ;
+		int[] coreCodes = new int[ attributes.getNumCoreAttributes() ] ;
+		for( int c=0 ; c<coreCodes.length ; c++ ) {
+			coreCodes[c] = DataElementCodec.getVarint( buffer ) - 1 ;
+		}
+		int[][] perimeterCodes = new int[ attributes.getNumPerimeterAttributes() ][ size ] ;
+		for( int p=0 ; p<perimeterCodes.length ; p++ ) {
+			for( int i=0 ; i<size ; i++ ) {
+				perimeterCodes[p][i] = DataElementCodec.getVarint( buffer ) - 1 ;
+			}
+		}
+		double[] values = new double[ size ] ;
+		for( int i=0 ; i<size ; i++ ) {
+			values[i] = buffer.getDouble() ;
+		}
+		return new DataElement( attributes, invariantKey, createdTime, sequence, coreCodes, perimeterCodes, values, size ) ;
+	}
+
+	private static String decodeKey( ByteBuffer buffer ) {
+		DataElementCodec.getVarint( buffer ) ;
+		return DataElementCodec.getString( buffer ) ;
+	}
+
+	/**
+	 * One independent part of the map. Reads share the lock,
+	 * puts (which may move things around) have it to themselves.
+	 */
+	private final class Stripe {
+		final ReentrantReadWriteLock lock = new ReentrantReadWriteLock() ;
+		List<ByteBuffer> segments ;
+		ByteBuffer index ;
+		int capacity ;					// number of index slots
+		volatile int size ;
+		long allocatedBytes ;			// segment bytes allocated
+		long usedBytes ;				// bytes written, including replaced elements
+		long liveBytes ;				// bytes of current elements
+
+		Stripe() {
+			reset() ;
+		}
+
+		DataElement get( int hash, String invariantKey ) {
+			lock.readLock().lock() ;
+			try {
+				int slot = find( hash, invariantKey ) ;
+				return slot < 0 ? null : decode( recordAt( segments, slot ) ) ;
+			} finally {
+				lock.readLock().unlock() ;
+			}
+		}
+
+		DataElement put( int hash, DataElement dataElement, ByteBuffer record ) {
+			lock.writeLock().lock() ;
+			try {
+				DataElement previous = null ;
+				int slot = find( hash, dataElement.getInvariantKey() ) ;
+				if( slot >= 0 ) {
+					previous = decode( recordAt( segments, slot ) ) ;
+					if( previous.supersedes( dataElement ) ) {
+						return previous ;		// stale, previous supersedes it
+					}
+					liveBytes -= index.getInt( slot*SLOT_BYTES+12 ) ;
+				} else {
+					slot = -slot - 1 ;
+					index.putInt( slot*SLOT_BYTES, hash ) ;
+					size++ ;
+				}
+				store( slot, record ) ;
+
+				if( size > capacity * MAX_LOAD ) {
+					resize( capacity * 2 ) ;
+				}
+				if( usedBytes > FIRST_SEGMENT_SIZE && usedBytes > 2 * liveBytes ) {
+					compact() ;
+				}
+				return previous ;
+			} finally {
+				lock.writeLock().unlock() ;
+			}
+		}
+
+		DataElement removeIfOlder( int hash, String invariantKey, long latestCreatedTime ) {
+			lock.writeLock().lock() ;
+			try {
+				int slot = find( hash, invariantKey ) ;
+				if( slot < 0 ) {
+					return null ;
+				}
+				DataElement previous = decode( recordAt( segments, slot ) ) ;
+				if( previous.getCreatedTime() > latestCreatedTime ) {
+					return null ;
+				}
+				liveBytes -= index.getInt( slot*SLOT_BYTES+12 ) ;
+				size-- ;
+				delete( slot ) ;
+				if( usedBytes > FIRST_SEGMENT_SIZE && usedBytes > 2 * liveBytes ) {
+					compact() ;
+				}
+				return previous ;
+			} finally {
+				lock.writeLock().unlock() ;
+			}
+		}
+
+		DataElement any() {
+			lock.readLock().lock() ;
+			try {
+				for( int slot=0 ; slot<capacity ; slot++ ) {
+					if( index.getInt( slot*SLOT_BYTES+4 ) != 0 ) {
+						return decode( recordAt( segments, slot ) ) ;
+					}
+				}
+				return null ;
+			} finally {
+				lock.readLock().unlock() ;
+			}
+		}
+
+		// Only where the records are is copied under the lock, so puts aren't held up
+		// while the action runs. Record bytes are never overwritten (compaction copies
+		// them to new segments) so they can be read once the lock is released.
+		void forEach( Consumer<DataElement> action ) {
+			final List<ByteBuffer> from ;
+			final int[] where ;				// segment+1, offset & length of each record
+			int n = 0 ;
+			lock.readLock().lock() ;
+			try {
+				from = new ArrayList<>( segments ) ;
+				where = new int[ size * 3 ] ;
+				for( int slot=0 ; slot<capacity ; slot++ ) {
+					int base = slot * SLOT_BYTES ;
+					if( index.getInt( base+4 ) != 0 ) {
+						where[n++] = index.getInt( base+4 ) ;
+						where[n++] = index.getInt( base+8 ) ;
+						where[n++] = index.getInt( base+12 ) ;
+					}
+				}
+			} finally {
+				lock.readLock().unlock() ;
+			}
+			for( int i=0 ; i<n ; i+=3 ) {
+				action.accept( decode( from.get( where[i]-1 ).slice( where[i+1], where[i+2] ) ) ) ;
+			}
+		}
+
+		void clear() {
+			lock.writeLock().lock() ;
+			try {
+				reset() ;
+			} finally {
+				lock.writeLock().unlock() ;
+			}
+		}
+
+		private void reset() {
+			segments = new ArrayList<>() ;
+			capacity = INITIAL_SLOTS ;
+			index = ByteBuffer.allocateDirect( capacity * SLOT_BYTES ) ;
+			size = 0 ;
+			allocatedBytes = 0 ;
+			usedBytes = 0 ;
+			liveBytes = 0 ;
+		}
+
+		// The slot holding the key, or -(insertion slot + 1) if not there
+		private int find( int hash, String invariantKey ) {
+			int mask = capacity - 1 ;
+			for( int slot = hash & mask ; ; slot = (slot+1) & mask ) {
+				int base = slot * SLOT_BYTES ;
+				if( index.getInt( base+4 ) == 0 ) {
+					return -slot - 1 ;
+				}
+				if( index.getInt( base ) == hash && invariantKey.equals( decodeKey( recordAt( segments, slot ) ) ) ) {
+					return slot ;
+				}
+			}
+		}
+
+		private ByteBuffer recordAt( List<ByteBuffer> from, int slot ) {
+			int base = slot * SLOT_BYTES ;
+			int offset = index.getInt( base+8 ) ;
+			ByteBuffer rc = from.get( index.getInt( base+4 ) - 1 ).duplicate() ;
+			rc.limit( offset + index.getInt( base+12 ) ).position( offset ) ;
+			return rc ;
+		}
+
+		// Append a record to the current segment, and point a slot at it
+		private void store( int slot, ByteBuffer record ) {
+			int length = record.remaining() ;
+			ByteBuffer segment = segments.isEmpty() ? null : segments.get( segments.size()-1 ) ;
+			if( segment == null || segment.remaining() < length ) {
+				int newSize = segment==null ? Math.min( FIRST_SEGMENT_SIZE, segmentSize ) : Math.min( segment.capacity()*2, segmentSize ) ;
+				segment = ByteBuffer.allocateDirect( Math.max( newSize, length ) ) ;
+				segments.add( segment ) ;
+				allocatedBytes += segment.capacity() ;
+			}
+			int base = slot * SLOT_BYTES ;
+			index.putInt( base+4, segments.size() ) ;
+			index.putInt( base+8, segment.position() ) ;
+			index.putInt( base+12, length ) ;
+			segment.put( record ) ;
+			usedBytes += length ;
+			liveBytes += length ;
+		}
+
+		// Empty a slot, moving back any later slots in the same probe run
+		// which would otherwise be unreachable (no tombstones needed)
+		private void delete( int slot ) {
+			int mask = capacity - 1 ;
+			int hole = slot ;
+			for( int next = (hole+1) & mask ; index.getInt( next*SLOT_BYTES+4 ) != 0 ; next = (next+1) & mask ) {
+				int home = index.getInt( next*SLOT_BYTES ) & mask ;
+				// an entry can stay put if its home is in (hole, next], cyclically
+				boolean stays = hole < next ? ( home > hole && home <= next ) : ( home > hole || home <= next ) ;
+				if( !stays ) {
+					for( int i=0 ; i<SLOT_BYTES ; i+=4 ) {
+						index.putInt( hole*SLOT_BYTES+i, index.getInt( next*SLOT_BYTES+i ) ) ;
+					}
+					hole = next ;
+				}
+			}
+			for( int i=0 ; i<SLOT_BYTES ; i+=4 ) {
+				index.putInt( hole*SLOT_BYTES+i, 0 ) ;
+			}
+		}
+
+		private void resize( int newCapacity ) {
+			ByteBuffer newIndex = ByteBuffer.allocateDirect( newCapacity * SLOT_BYTES ) ;
+			int mask = newCapacity - 1 ;
+			for( int slot=0 ; slot<capacity ; slot++ ) {
+				int base = slot * SLOT_BYTES ;
+				if( index.getInt( base+4 ) == 0 ) continue ;
+				int newSlot = index.getInt( base ) & mask ;
+				while( newIndex.getInt( newSlot*SLOT_BYTES+4 ) != 0 ) {
+					newSlot = (newSlot+1) & mask ;
+				}
+				for( int i=0 ; i<SLOT_BYTES ; i+=4 ) {
+					newIndex.putInt( newSlot*SLOT_BYTES+i, index.getInt( base+i ) ) ;
+				}
+			}
+			index = newIndex ;
+			capacity = newCapacity ;
+		}
+
+		// Copy the current elements to new segments, dropping replaced ones
+		private void compact() {
+			long before = allocatedBytes ;
+			List<ByteBuffer> oldSegments = segments ;
+			segments = new ArrayList<>() ;
+			allocatedBytes = 0 ;
+			usedBytes = 0 ;
+			liveBytes = 0 ;
+			for( int slot=0 ; slot<capacity ; slot++ ) {
+				if( index.getInt( slot*SLOT_BYTES+4 ) != 0 ) {
+					store( slot, recordAt( oldSegments, slot ) ) ;
+				}
+			}
+			logger.debug( "Compacted off heap stripe from {} to {} bytes", before, allocatedBytes ) ;
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.rc.dataview ;
 
+import java.util.Comparator;
+
 import com.rc.datamodel.DataElement;
 
 public class DataDetailMessage implements Comparable<DataDetailMessage> {
@@ -9,6 +11,13 @@ public class DataDetailMessage implements Comparable<DataDetailMessage> {
     final public String[] columns;
 
     final static public String HEADER_INVARIANT_KEY = "** HDRS **" ;
+
+    // The natural order - newest first
+    final static public Comparator<DataDetailMessage> NEWEST_FIRST = Comparator.naturalOrder() ;
+    // Largest absolute value first, then newest
+    final static public Comparator<DataDetailMessage> LARGEST_FIRST = 
+    		Comparator.<DataDetailMessage>comparingDouble( d -> Math.abs(d.value) ).reversed().thenComparing( NEWEST_FIRST ) ;
+
     public DataDetailMessage( DataElement de, int index ) {
         this.value = de.getValue(index) ;
         this.createdTime = de.getCreatedTime() ;
@@ -11,7 +11,10 @@ import org.slf4j.LoggerFactory;
 
 import com.rc.agg.DataElementProcessor;
 import com.rc.agg.client.ClientCommandProcessorImpl;
+import com.rc.datamodel.AttributeHandle;
+import com.rc.datamodel.AttributeValueDictionary;
 import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementAttributes;
 
 /**
  * This class represents the view. It maintains a view of
@@ -23,6 +26,12 @@ import com.rc.datamodel.DataElement;
  * real-time to keep a live view of the model subset. This is the 
  * aggregation step.
  * 
+ * A batch which replaces all the data is aggregated into a new generation
+ * of cells, beside the cells clients are watching. At the end of the batch
+ * the new cells replace the old ones and only the differences are sent. The
+ * start & end of a generation are markers in the receiver's queue, so 
+ * elements queued before the batch started still go to the old cells.
+ * 
  * @author richard
  *
  */
@@ -37,12 +46,20 @@ public class DataElementDataView  implements DataElementProcessor {
 	// How often to send an update to the client (millis)
 	private static final int CLIENT_UPDATE_INTERVAL = 200 ;	
 	private static final int MAX_MESSAGES_TO_BUFFER = 300 ;
+	private static final long CELL_BYTES = 104 ;			// cell, map node & key String (without its bytes)
+	private static final int CELLS_TO_SAMPLE = 100 ;		// for the average key length
+	// queue markers, the start & end of a new generation of cells
+	private static final List<DataElement> START_GENERATION = Collections.unmodifiableList( new ArrayList<>() ) ;
+	private static final List<DataElement> END_GENERATION = Collections.unmodifiableList( new ArrayList<>() ) ;
 
 	private final Map<String,String[]> filters ; 	// what key = value is being filtered
 	private final Map<String,Map<String,String>> setValues ; 	// force change in value of an attribute on condition
 	private final String[] colGroups; 				// what is getting grouped
 	private final String[] rowGroups; 				// what is getting grouped
 	private final Set<String> hiddenAttributes ; 	// Do not show these atts on screen
+	private final boolean hidden ;					// are any grouped attributes hidden?
+	private volatile CoreFilterMask coreFilterMask ;	// quick test of the core filters
+	private volatile CompiledAttributes compiledAttributes ;	// groups & filters as handles
 	
 	// This contains a list of N int[2] 
 	// Each item in the list is a unique permutation of the row index & column index
@@ -54,13 +71,19 @@ public class DataElementDataView  implements DataElementProcessor {
 	// Map keyed on elementKey ( rows & column attribute values )
 	// The current (expanded) view is stored in here
 	private final Map<String,DataViewElement>   dataViewElements ;	
+	// The next generation's cells while a new batch is loading, only
+	// changed by the receiver. Null when there's no new batch.
+	private volatile Map<String,DataViewElement> shadowElements ;
+	private volatile boolean generationPending ;	// a START_GENERATION is queued without its END
+	private final boolean processOverridden ;		// a subclass changes process, so bulk ingest must call it
 
 	private final String viewName ;
 	private final String description ;
+	private final ViewDefinition viewDefinition ;
 
 	private volatile boolean serverBatchComplete ;
 	private final List<ClientDataView> clientViews ;	// which clients need to be told about updates?
-	private final BlockingQueue<DataElement> messagesToProcess ;
+	private final BlockingQueue<List<DataElement>> messagesToProcess ;	// batches of elements
 	private Thread messageSender ;
 	private Thread messageReceiver ;
 
@@ -125,6 +148,8 @@ public class DataElementDataView  implements DataElementProcessor {
 		this.messagesToProcess = new ArrayBlockingQueue<>( MAX_MESSAGES_TO_BUFFER ) ;
 		this.viewName = viewDefinition.getName() ;
 		this.description = viewDefinition.getDescription() ;
+		this.viewDefinition = viewDefinition ;
+		this.processOverridden = overridesProcess( getClass() ) ;
 
 		//----------------------
 		// F I L T E R S
@@ -157,6 +182,10 @@ public class DataElementDataView  implements DataElementProcessor {
 		
 		this.hiddenAttributes = new HashSet<>() ;
         Collections.addAll(this.hiddenAttributes, viewDefinition.getHiddenAttributes());
+		boolean anyHidden = false ;
+		for( String colGroup : colGroups ) anyHidden |= hiddenAttributes.contains( colGroup ) ;
+		for( String rowGroup : rowGroups ) anyHidden |= hiddenAttributes.contains( rowGroup ) ;
+		this.hidden = anyHidden ;
 
 		//----------------------
 		// T O T A L S
@@ -191,6 +220,26 @@ public class DataElementDataView  implements DataElementProcessor {
 		}		
 	}
 
+	/**
+	 * Does the view class have its own process( DataElement ) ? Such a view
+	 * must see every element through it, so bulk ingest and rebuilds can't
+	 * go straight to the receiver.
+	 */
+	private static boolean overridesProcess( Class<?> clazz ) {
+		try {
+			return clazz.getMethod( "process", DataElement.class ).getDeclaringClass() != DataElementDataView.class ;
+		} catch( NoSuchMethodException e ) {
+			throw new IllegalStateException( e ) ;
+		}
+	}
+
+	/**
+	 * @return whether every element must be passed to process( DataElement ), not queued in bulk
+	 */
+	boolean isProcessOverridden() {
+		return processOverridden ;
+	}
+
 /**
  * Start the threads running.
  * 
@@ -261,24 +310,25 @@ public class DataElementDataView  implements DataElementProcessor {
 	 * 
 	 * @param index the index of the perimeter components in an element
 	 * @param element the input DataElement
+	 * @param compiled the filters, compiled for the element's attributes
 	 * @return true means we match 
 	 */
-	private boolean matchesPerimeterElements(int index, DataElement element) {
-		boolean rc = true ;
-		if( filters != null  ) {
-			for( var entry : filters.entrySet() ) {
-				String[] mustMatchOneOfThese = entry.getValue() ;
-				String att = element.getAttribute( index, entry.getKey() ) ;
-				boolean matchedOneOfThese = false ;
-				for( String couldMatchThis : mustMatchOneOfThese ) {
-					matchedOneOfThese = att.equals(couldMatchThis);
-					if( matchedOneOfThese ) break ;
-				}
-				rc = matchedOneOfThese;
-				if( !rc ) break ;
+	private boolean matchesPerimeterElements(int index, DataElement element, CompiledAttributes compiled) {
+		for( int f=0 ; f<compiled.filterHandles.length ; f++ ) {
+			int[] mustMatchOneOfThese = compiled.filterCodes[f] ;
+			if( mustMatchOneOfThese == null ) {		// unknown attribute - same answer every time
+				if( !compiled.unknownFilterMatches[f] ) return false ;
+				continue ;
+			}
+			int att = element.getCode( index, compiled.filterHandles[f] ) ;
+			boolean matchedOneOfThese = false ;
+			for( int couldMatchThis : mustMatchOneOfThese ) {
+				matchedOneOfThese = att == couldMatchThis ;
+				if( matchedOneOfThese ) break ;
 			}
+			if( !matchedOneOfThese ) return false ;
 		}
-		return rc ;
+		return true ;
 	}
 
 
@@ -292,16 +342,17 @@ public class DataElementDataView  implements DataElementProcessor {
 	 */
 	private boolean matchesCoreElements(DataElement element) {
 		if( filters != null ) {
-			//if( !element.quickMatchesCoreKeys( bloomFilter ) ) return false ;
-			for( var entry : filters.entrySet() ) {
-				String[] mustMatchOneOfThese = entry.getValue() ;
-				// String att = element.getCoreAttribute( k ) ;
-				//ZXCVBNM
-				String att = element.getAttribute( entry.getKey() ) ;
-				if( att != null ) {
+			if( !quickMatchesCoreKeys( element ) ) return false ;
+			CompiledAttributes compiled = compiledAttributes( element ) ;
+			for( int f=0 ; f<compiled.filterHandles.length ; f++ ) {
+				AttributeHandle handle = compiled.filterHandles[f] ;
+				// a null core label matches anything, perimeter labels are checked later
+				if( !handle.isCore() ) continue ;
+				int att = element.getCode( 0, handle ) ;
+				if( att != AttributeValueDictionary.NULL_CODE ) {
 					boolean matchedOneOfThese = false ;
-					for( String couldMatchThis : mustMatchOneOfThese ) {
-						if( att.equals( couldMatchThis ) ) {
+					for( int couldMatchThis : compiled.filterCodes[f] ) {
+						if( att == couldMatchThis ) {
 							matchedOneOfThese = true ;
 							break ;
 						}
@@ -316,6 +367,134 @@ public class DataElementDataView  implements DataElementProcessor {
 	}
 
 
+	/**
+	 * The bloom filter test of the core filters. A false return means the element
+	 * cannot match, a true return still needs the full test. The masks depend on 
+	 * which attributes are core, so they are remade if the attributes change.
+	 * 
+	 * @param element the input DataElement
+	 * @return false if the element definitely doesn't match
+	 */
+	private boolean quickMatchesCoreKeys(DataElement element) {
+		CoreFilterMask mask = coreFilterMask ;
+		if( mask == null || mask.attributes != element.getDataElementAttributes() ) {
+			mask = new CoreFilterMask( element.getDataElementAttributes(), filters ) ;
+			coreFilterMask = mask ;
+		}
+		return element.quickMatchesCoreKeys( mask.allOf, mask.anyOf ) ;
+	}
+
+	// The masks used for a quick core filter test, valid 
+	// for one set of attributes only.
+	static final class CoreFilterMask {
+		final DataElementAttributes attributes ;
+		final long allOf ;
+		final long[] anyOf ;
+		CoreFilterMask( DataElementAttributes attributes, Map<String,String[]> filters ) {
+			long[] masks = attributes.coreSignatureMask( filters ) ;
+			this.attributes = attributes ;
+			this.allOf = masks[0] ;
+			this.anyOf = Arrays.copyOfRange( masks, 1, masks.length ) ;
+		}
+	}
+
+	/**
+	 * Find the groups and filters compiled for an element's attributes. These
+	 * are remade if the attributes change, usually they never do, or if a filter
+	 * label that wasn't known when they were compiled may now be.
+	 * 
+	 * @param element the input DataElement
+	 * @return the compiled handles for the element's attributes
+	 */
+	private CompiledAttributes compiledAttributes(DataElement element) {
+		CompiledAttributes compiled = compiledAttributes ;
+		if( compiled == null || compiled.attributes != element.getDataElementAttributes() || compiled.isStale() ) {
+			compiled = new CompiledAttributes( element.getDataElementAttributes(), colGroups, rowGroups, filters, setValues ) ;
+			compiledAttributes = compiled ;
+		}
+		return compiled ;
+	}
+
+	// The group and filter attribute names resolved to handles, and the
+	// filter labels to codes, valid for one set of attributes only. Filter
+	// labels are looked up, not added, to the dictionaries. One that's not
+	// there yet gets NO_CODE (so matches nothing) until its dictionary grows.
+	static final class CompiledAttributes {
+		final DataElementAttributes attributes ;
+		final AttributeHandle[] colHandles ;
+		final AttributeHandle[] rowHandles ;
+		final List<Map<String,String>> colSetValues ;	// renames for each col group (entries may be null)
+		final List<Map<String,String>> rowSetValues ;	// renames for each row group (entries may be null)
+		final AttributeHandle[] filterHandles ;
+		final int[][] filterCodes ;					// null if the filter attribute is unknown
+		final boolean[] unknownFilterMatches ;		// an unknown attribute's value is its name
+		final List<AttributeValueDictionary> missingFrom ;	// dictionaries without some filter label
+		final List<Integer> missingSizes ;			// ... and their sizes when compiled
+
+		CompiledAttributes( DataElementAttributes attributes, String[] colGroups, String[] rowGroups, 
+							Map<String,String[]> filters, Map<String,Map<String,String>> setValues ) {
+			this.attributes = attributes ;
+			this.colHandles = attributes.getHandles( colGroups ) ;
+			this.rowHandles = attributes.getHandles( rowGroups ) ;
+			this.colSetValues = new ArrayList<>( colGroups.length ) ;
+			for( String colGroup : colGroups ) {
+				colSetValues.add( setValues==null ? null : setValues.get( colGroup ) ) ;
+			}
+			this.rowSetValues = new ArrayList<>( rowGroups.length ) ;
+			for( String rowGroup : rowGroups ) {
+				rowSetValues.add( setValues==null ? null : setValues.get( rowGroup ) ) ;
+			}
+
+			int numFilters = filters==null ? 0 : filters.size() ;
+			this.filterHandles = new AttributeHandle[ numFilters ] ;
+			this.filterCodes = new int[ numFilters ][] ;
+			this.unknownFilterMatches = new boolean[ numFilters ] ;
+			this.missingFrom = new ArrayList<>() ;
+			this.missingSizes = new ArrayList<>() ;
+			if( filters != null ) {
+				int f = 0 ;
+				for( var entry : filters.entrySet() ) {
+					AttributeHandle handle = attributes.getHandle( entry.getKey() ) ;
+					String[] mustMatchOneOfThese = entry.getValue() ;
+					filterHandles[f] = handle ;
+					if( handle.isValid() ) {
+						// a missing label reads as "-", so a "-" filter matches the null code
+						int[] codes = new int[ mustMatchOneOfThese.length ] ;
+						for( int i=0 ; i<codes.length ; i++ ) {
+							if( "-".equals( mustMatchOneOfThese[i] ) ) {
+								codes[i] = AttributeValueDictionary.NULL_CODE ;
+								continue ;
+							}
+							// size first, so a label added after the lookup always makes this stale
+							AttributeValueDictionary dictionary = attributes.getDictionary( handle.getIndex() ) ;
+							int size = dictionary.size() ;
+							codes[i] = dictionary.codeOf( mustMatchOneOfThese[i] ) ;
+							if( codes[i] == AttributeValueDictionary.NULL_CODE ) {
+								codes[i] = AttributeValueDictionary.NO_CODE ;
+								if( !missingFrom.contains( dictionary ) ) {
+									missingFrom.add( dictionary ) ;
+									missingSizes.add( size ) ;
+								}
+							}
+						}
+						filterCodes[f] = codes ;
+					} else {
+						unknownFilterMatches[f] = Arrays.asList( mustMatchOneOfThese ).contains( entry.getKey() ) ;
+					}
+					f++ ;
+				}
+			}
+		}
+
+		// Has a dictionary missing a filter label had anything added since?
+		boolean isStale() {
+			for( int i=0 ; i<missingFrom.size() ; i++ ) {
+				if( missingFrom.get(i).size() != missingSizes.get(i) ) return true ;
+			}
+			return false ;
+		}
+	}
+
 	/**
 	 *  Look at all the saved elements and send any that have changed.
 	 *  @TODO Since data can change - in a diff thread - this needs to
@@ -389,6 +568,13 @@ public class DataElementDataView  implements DataElementProcessor {
 			}
 			dve2.set( entry.getValue().d );
 		}
+		// totals of cells which have all gone, e.g. after a new generation
+		for(var entry : dataViewElements.entrySet() ) {
+			DataViewElement dve = entry.getValue() ;
+			if( dve.isTotal() && !dve.isUnused() && !totals.containsKey( entry.getKey() ) ) {
+				dve.markUnused() ;
+			}
+		}
 	}
 	
 	
@@ -409,10 +595,10 @@ public class DataElementDataView  implements DataElementProcessor {
 	 */
 	protected Collection<String> makeTotalKeys( String elementKey ) {
 
-		final var components = elementKey.split( DataElement.ROW_COL_SEPARATION_STRING ) ;
+		final var components = DataElement.splitComponents( elementKey, DataElement.ROW_COL_SEPARATION_CHAR ) ;
 
-		final var colKeys = components[0].split( DataElement.SEPARATION_STRING ) ;
-		final var rowKeys = components[1].split( DataElement.SEPARATION_STRING ) ;
+		final var colKeys = DataElement.splitComponents( components[0] ) ;
+		final var rowKeys = DataElement.splitComponents( components[1] ) ;
 
 		final var keys = new ArrayList<String>(rowKeys.length * totalPermutations.length);
 
@@ -459,7 +645,7 @@ public class DataElementDataView  implements DataElementProcessor {
 	public void process( DataElement dataElement )  {
 		if( matchesCoreElements( dataElement ) && messageReceiver != null ) {
 			try {
-				messagesToProcess.put( dataElement ) ;
+				messagesToProcess.put( List.of( dataElement ) ) ;
 			} catch( InterruptedException iex ) {
 				// ignore - interruption means we're shutting down
 			}
@@ -467,12 +653,41 @@ public class DataElementDataView  implements DataElementProcessor {
 	}
 
 	/**
-	 * Adds an element to the data view. This needs to figure out all the
-	 * combinations of keys and add the value to the pre-calculated pieces.
-	 * All messages received should be pre-screened so that the core Elements
-	 * match any active filters.
+	 * Adds a batch of elements to the data view. Those that match the view
+	 * filters are queued, in order, as one message to the receiver.
+	 * A view class with its own process( DataElement ) has each element
+	 * passed to that instead.
 	 * 
-	 * This method probably consumes 90% of the CPU capacity - be careful editing
+	 * @param dataElements the elements to add to the view
+	 */
+	@Override
+	public void processAll( Collection<DataElement> dataElements )  {
+		if( processOverridden ) {
+			for( DataElement dataElement : dataElements ) {
+				process( dataElement ) ;
+			}
+			return ;
+		}
+		if( messageReceiver == null ) return ;
+		List<DataElement> batch = new ArrayList<>( dataElements.size() ) ;
+		for( DataElement dataElement : dataElements ) {
+			if( matchesCoreElements( dataElement ) ) {
+				batch.add( dataElement ) ;
+			}
+		}
+		if( !batch.isEmpty() ) {
+			try {
+				messagesToProcess.put( batch ) ;
+			} catch( InterruptedException iex ) {
+				// ignore - interruption means we're shutting down
+			}
+		}
+	}
+
+	/**
+	 * Takes batches of elements, queued by process, and aggregates them into
+	 * the view. Everything waiting is drained in one go so a busy queue doesn't
+	 * cost a park/unpark per element.
 	 * 
 	 */
 	public void receiverThread() {
@@ -484,81 +699,31 @@ public class DataElementDataView  implements DataElementProcessor {
 			// The cumulative cartesian key for this element
 			// need that to keep track of totals
 			StringBuilder elementKey = new StringBuilder( 256 ) ;
+			List<List<DataElement>> batches = new ArrayList<>() ;
 
 			while( !Thread.currentThread().isInterrupted() ) {
 				//-------------------------------
 				// B L O C K I N G  call to take
 				// 
-				DataElement dataElement = messagesToProcess.take() ;
-				// for each sub element
-				for( int i=0 ; i<dataElement.size() ; i++ ) {
-					//check second part of filter
-					if( matchesPerimeterElements( i, dataElement ) ) {
-						colKeyPiece.setLength(0);
-						// for each column key piece
-						boolean hidden = false ;
-
-						for( String colGroup : colGroups ) {
-							hidden |= hiddenAttributes.contains( colGroup ) ;
-							// add the next piece to the cumulative column key
-							String rawColAttributeValue = dataElement.getAttribute( i, colGroup ) ;
-							// will we rename any values ( i.e. part of a group ) ?
-							if( this.setValues != null ) {
-								Map<String,String> setValuesForThisColGroup = this.setValues.get( colGroup ) ;
-								if( setValuesForThisColGroup == null ) {  // no renaming defined
-									colKeyPiece.append( rawColAttributeValue ) ;
-								} else { // rename defined - use the group (or original name)
-									String replacementValue = setValuesForThisColGroup.get( rawColAttributeValue ) ;
-									colKeyPiece.append( replacementValue==null ? rawColAttributeValue : replacementValue ) ;
-								}
-							} else { // no grouping defined at all
-								colKeyPiece.append( rawColAttributeValue ) ;
-							}
-							colKeyPiece.append( DataElement.SEPARATION_CHAR ) ;
-						}
-						colKeyPiece.setLength( colKeyPiece.length() - 1 ) ;
-						// restart the cartesian key at empty
-						elementKey.setLength(0);
-						// Then add in the proper number of column components 
-						elementKey.append( colKeyPiece ).append( DataElement.ROW_COL_SEPARATION_CHAR ) ;
-						// Now with the base column done - add each row key, one at a time
-						// so get the cartesian of rows & columns into the 
-						// elementKey. This inner loop executes once per item in the 
-						// cartesian ... 2 row keys & 3 col keys == 6 loops
-						for( String rowGroup : rowGroups ) {
-							hidden |= hiddenAttributes.contains( rowGroup ) ;
-							String rawRowAttributeValue = dataElement.getAttribute( i, rowGroup ) ;
-							if( this.setValues != null ) {  // any grouping defined?
-								Map<String,String> setValuesForThisRowGroup = this.setValues.get( rowGroup ) ;
-								if( setValuesForThisRowGroup == null ) { // no groups defined for this section
-									elementKey.append( rawRowAttributeValue ) ;
-								} else { // group is defined so rename if attribute matches or keep the original
-									String replacementValue = setValuesForThisRowGroup.get( rawRowAttributeValue ) ;
-									elementKey.append( replacementValue==null ? rawRowAttributeValue : replacementValue ) ;
-								}
-							} else { 
-								elementKey.append( rawRowAttributeValue ) ;  // no groups defined
-							}
-							elementKey.append( DataElement.SEPARATION_CHAR ) ;
+				batches.add( messagesToProcess.take() ) ;
+				messagesToProcess.drainTo( batches ) ;
+				for( List<DataElement> batch : batches ) {
+					if( batch == START_GENERATION ) {
+						shadowElements = new HashMap<>() ;
+					} else if( batch == END_GENERATION ) {
+						Map<String,DataViewElement> shadow = shadowElements ;
+						if( shadow != null ) {
+							useGeneration( shadow ) ;
+							shadowElements = null ;
 						}
-						elementKey.setLength( elementKey.length() - 1 ) ;
-
-						// now turn the key into a hashable thing
-						String key = elementKey.toString() ;
-                        DataViewElement dve = dataViewElements.get( key ) ;
-						if( dve == null ) {   // if we don't have a key create it
-							// Allow concurrent elem creates
-							DataViewElement newDve = new DataViewElement( hidden ) ;
-							dve = dataViewElements.putIfAbsent( key, newDve ) ;
-							if( dve==null ) {
-								dve = newDve ;
-							}
+					} else {
+						Map<String,DataViewElement> cells = shadowElements ;
+						for( DataElement dataElement : batch ) {
+							aggregate( dataElement, colKeyPiece, elementKey, cells==null ? dataViewElements : cells ) ;
 						}
-						// add the value to the new key
-						// This is where the aggregation happens
-						dve.add( dataElement.getValue(i) )  ; 							
 					}
 				}
+				batches.clear() ;
 			}
 		} catch( InterruptedException iex ) {
 			logger.warn( "Message receiver thread interrupted, do NOT send messages to this view.") ;
@@ -569,30 +734,189 @@ public class DataElementDataView  implements DataElementProcessor {
 
 
 	/**
-	 * When the server starts a new batch of data, this is called
-	 * it sets a flag - which indicates to suspends messaging to
-	 * the clients.
+	 * Aggregate an element into a separate set of cells, e.g. a partial result
+	 * built on another thread, which is added to the view later by merge.
+	 * Elements that don't match the view filters are ignored.
+	 * 
+	 * @see #merge(Map)
+	 * @param dataElement the element to aggregate
+	 * @param cells where to aggregate, keyed like the view
+	 * @param colKeyPiece a work buffer for the column part of the key
+	 * @param elementKey a work buffer for the whole key
+	 */
+	void aggregateInto( DataElement dataElement, Map<String,DataViewElement> cells, StringBuilder colKeyPiece, StringBuilder elementKey ) {
+		if( matchesCoreElements( dataElement ) ) {
+			aggregate( dataElement, colKeyPiece, elementKey, cells ) ;
+		}
+	}
+
+	/**
+	 * Add a set of partial cells, from aggregateInto, to the view. Cells
+	 * can't be added to concurrently, so only one merge may run at a time
+	 * and nothing should be queued for the receiver while it does.
+	 * 
+	 * @param cells the cells to add
+	 */
+	void merge( Map<String,DataViewElement> cells ) {
+		for( Map.Entry<String,DataViewElement> entry : cells.entrySet() ) {
+			DataViewElement dve = dataViewElements.get( entry.getKey() ) ;
+			if( dve == null ) {
+				DataViewElement newDve = new DataViewElement( hidden ) ;
+				dve = dataViewElements.putIfAbsent( entry.getKey(), newDve ) ;
+				if( dve==null ) {
+					dve = newDve ;
+				}
+			}
+			dve.add( entry.getValue().getValue() ) ;
+		}
+	}
+
+	/**
+	 * Adds an element to the data view. This needs to figure out all the
+	 * combinations of keys and add the value to the pre-calculated pieces.
+	 * All messages received should be pre-screened so that the core Elements
+	 * match any active filters.
+	 * 
+	 * This method probably consumes 90% of the CPU capacity - be careful editing
+	 * 
+	 * @param dataElement the element to aggregate
+	 * @param colKeyPiece a work buffer for the column part of the key
+	 * @param elementKey a work buffer for the whole key
+	 * @param cells where to aggregate: the view's own cells, a new generation or a partial set
+	 */
+	private void aggregate( DataElement dataElement, StringBuilder colKeyPiece, StringBuilder elementKey, Map<String,DataViewElement> cells ) {
+		CompiledAttributes compiled = compiledAttributes( dataElement ) ;
+		// for each sub element
+		for( int i=0 ; i<dataElement.size() ; i++ ) {
+			//check second part of filter
+			if( matchesPerimeterElements( i, dataElement, compiled ) ) {
+				colKeyPiece.setLength(0);
+				// for each column key piece
+				for( int c=0 ; c<compiled.colHandles.length ; c++ ) {
+					// add the next piece to the cumulative column key
+					String rawColAttributeValue = dataElement.getAttribute( i, compiled.colHandles[c] ) ;
+					// will we rename any values ( i.e. part of a group ) ?
+					Map<String,String> setValuesForThisColGroup = compiled.colSetValues.get( c ) ;
+					if( setValuesForThisColGroup == null ) {  // no renaming defined
+						colKeyPiece.append( rawColAttributeValue ) ;
+					} else { // rename defined - use the group (or original name)
+						String replacementValue = setValuesForThisColGroup.get( rawColAttributeValue ) ;
+						colKeyPiece.append( replacementValue==null ? rawColAttributeValue : replacementValue ) ;
+					}
+					colKeyPiece.append( DataElement.SEPARATION_CHAR ) ;
+				}
+				colKeyPiece.setLength( colKeyPiece.length() - 1 ) ;
+				// restart the cartesian key at empty
+				elementKey.setLength(0);
+				// Then add in the proper number of column components 
+				elementKey.append( colKeyPiece ).append( DataElement.ROW_COL_SEPARATION_CHAR ) ;
+				// Now with the base column done - add each row key, one at a time
+				// so get the cartesian of rows & columns into the 
+				// elementKey. This inner loop executes once per item in the 
+				// cartesian ... 2 row keys & 3 col keys == 6 loops
+				for( int r=0 ; r<compiled.rowHandles.length ; r++ ) {
+					String rawRowAttributeValue = dataElement.getAttribute( i, compiled.rowHandles[r] ) ;
+					Map<String,String> setValuesForThisRowGroup = compiled.rowSetValues.get( r ) ;
+					if( setValuesForThisRowGroup == null ) { // no groups defined for this section
+						elementKey.append( rawRowAttributeValue ) ;
+					} else { // group is defined so rename if attribute matches or keep the original
+						String replacementValue = setValuesForThisRowGroup.get( rawRowAttributeValue ) ;
+						elementKey.append( replacementValue==null ? rawRowAttributeValue : replacementValue ) ;
+					}
+					elementKey.append( DataElement.SEPARATION_CHAR ) ;
+				}
+				elementKey.setLength( elementKey.length() - 1 ) ;
+
+				// now turn the key into a hashable thing
+				String key = elementKey.toString() ;
+				DataViewElement dve = cells.get( key ) ;
+				if( dve == null ) {   // if we don't have a key create it
+					// Allow concurrent elem creates
+					DataViewElement newDve = new DataViewElement( hidden ) ;
+					dve = cells.putIfAbsent( key, newDve ) ;
+					if( dve==null ) {
+						dve = newDve ;
+					}
+				}
+				// add the value to the new key
+				// This is where the aggregation happens
+				dve.add( dataElement.getValue(i) )  ; 							
+			}
+		}
+	}
+
+
+	/**
+	 * When the server starts a new batch of data, this is called.
+	 * A batch adding to the data sets a flag - which suspends messaging 
+	 * to the clients. A batch replacing the data starts a new generation
+	 * of cells, clients are still sent updates of the current cells.
 	 * 
-	 * @param deleteContents - clear all current data content?
+	 * @param deleteContents - replace all current data content?
 	 */
 	public void startBatch( boolean deleteContents ) {		
-		serverBatchComplete = false ;
 		if( deleteContents ) {
-			messagesToProcess.clear();			
-			for( DataViewElement dve : dataViewElements.values() ) {
-				dve.markUnused() ;
-			}
+			// a new generation already started is thrown away by the next
+			generationPending = true ;
+			queueMarker( START_GENERATION ) ;
+		} else {
+			serverBatchComplete = false ;
 		}
 	}
 
 	/**
-	 * Restart sending updates to the clients
+	 * Restart sending updates to the clients, once any new generation
+	 * of cells has replaced the current ones.
 	 * 
 	 */
 	public void endBatch() {
+		if( generationPending ) {
+			generationPending = false ;
+			queueMarker( END_GENERATION ) ;
+		}
 		serverBatchComplete = true ;
 	}
 
+	private void queueMarker( List<DataElement> marker ) {
+		if( messageReceiver == null ) return ;
+		try {
+			messagesToProcess.put( marker ) ;
+		} catch( InterruptedException iex ) {
+			// ignore - interruption means we're shutting down
+		}
+	}
+
+	/**
+	 * Replace the cells with a new generation. Cells with a new value are
+	 * marked updated, cells no longer used are marked unused, the rest are
+	 * left alone - so the sender only tells clients about the differences.
+	 * Totals are worked out again by the sender. Synchronized with the 
+	 * sender so clients never see half of each generation.
+	 * 
+	 * @param shadow the new generation of cells
+	 */
+	private synchronized void useGeneration( Map<String,DataViewElement> shadow ) {
+		int numChanged = 0 ;
+		int numUnused = 0 ;
+		for( var entry : dataViewElements.entrySet() ) {
+			DataViewElement dve = entry.getValue() ;
+			if( !dve.isTotal() && !dve.isUnused() && !shadow.containsKey( entry.getKey() ) ) {
+				dve.markUnused() ;
+				numUnused++ ;
+			}
+		}
+		for( var entry : shadow.entrySet() ) {
+			DataViewElement dve = dataViewElements.get( entry.getKey() ) ;
+			if( dve == null ) {
+				dataViewElements.put( entry.getKey(), entry.getValue() ) ;
+				numChanged++ ;
+			} else if( dve.set( entry.getValue().getValue() ) ) {
+				numChanged++ ;
+			}
+		}
+		logger.info( "View {} has a new generation of {} cells, {} changed and {} unused", viewName, shadow.size(), numChanged, numUnused ) ;
+	}
+
 	public String[] getColGroups() {
 		return colGroups;
 	}
@@ -610,6 +934,18 @@ public class DataElementDataView  implements DataElementProcessor {
 		return viewName;
 	}
 
+	public ViewDefinition getViewDefinition() {
+		return viewDefinition;
+	}
+
+	/**
+	 * @param elementKey the cell's column key, ROW_COL_SEPARATION_CHAR and row key
+	 * @return the current cell, or null if there isn't one
+	 */
+	DataViewElement getCell( String elementKey ) {
+		return dataViewElements.get( elementKey ) ;
+	}
+
 
 	public synchronized void removeClient( ClientDataView client ) {
 		this.clientViews.remove( client ) ;
@@ -628,6 +964,34 @@ public class DataElementDataView  implements DataElementProcessor {
 		return this.setValues ;
 	}
 	
+	/**
+	 * A rough count of the heap used by the view: its cells (of both generations
+	 * while a new batch is loading) and the elements queued for the receiver.
+	 * Key lengths are sampled.
+	 * 
+	 * @return the estimated number of bytes
+	 */
+	public long getEstimatedBytes() {
+		long numCells = dataViewElements.size() ;
+		long keyBytes = 0 ;
+		int sampled = 0 ;
+		for( String key : dataViewElements.keySet() ) {
+			keyBytes += key.length() ;
+			if( ++sampled >= CELLS_TO_SAMPLE ) break ;
+		}
+		Map<String,DataViewElement> shadow = shadowElements ;
+		if( shadow != null ) {
+			numCells += shadow.size() ;
+		}
+		long rc = numCells * CELL_BYTES + ( sampled==0 ? 0 : numCells * keyBytes / sampled ) ;
+		for( List<DataElement> batch : messagesToProcess ) {
+			for( DataElement dataElement : batch ) {
+				rc += dataElement.getEstimatedBytes() ;
+			}
+		}
+		return rc ;
+	}
+
 	public String toString() {
 		return viewName + 
 				" View Size: " + dataViewElements.size() +
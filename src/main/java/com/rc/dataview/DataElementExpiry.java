@@ -0,0 +1,215 @@
+package com.rc.dataview;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rc.datamodel.DataElement;
+
+/**
+ * Removes elements from the store a while after they were created. How long
+ * an element lives depends on the first rule its invariant key matches, keys
+ * matching no rule never expire.
+ *
+ * Rules are given as <code>regex=minutes;regex=minutes...</code> e.g.
+ * <code>AMEND.*=30;.*=720</code>
+ *
+ * Keys are kept in time buckets (one per second) of when they expire, rounded
+ * up, each tick only the buckets that are due are looked at, never the whole store.
+ * When an element is replaced its key moves to the bucket of the replacement.
+ *
+ * @author richard
+ * @see DataElementStore#expire(String, long)
+ */
+class DataElementExpiry implements AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger( DataElementExpiry.class ) ;
+
+	private final static long BUCKET_MILLIS = 1_000 ;
+
+	private final DataElementStore dataElementStore ;
+	private final Pattern[] patterns ;
+	private final long[] timeToLive ;					// millis, for the matching pattern
+	private final Map<Long,Set<String>> buckets ;		// expiry time / BUCKET_MILLIS => keys
+	private final ReadWriteLock bucketLock ;			// updates share it, taking due buckets is exclusive
+	private volatile long firedUpTo ;					// the last bucket taken
+	private final AtomicLong numExpired ;
+	private ScheduledExecutorService scheduler ;
+
+	/**
+	 * @param dataElementStore where to expire elements
+	 * @param rules the rules, as regex=minutes separated by ;
+	 */
+	DataElementExpiry( DataElementStore dataElementStore, String rules ) {
+		this.dataElementStore = dataElementStore ;
+		List<Pattern> patternList = new ArrayList<>() ;
+		List<Long> ttlList = new ArrayList<>() ;
+		for( String rule : rules.split( ";" ) ) {
+			rule = rule.trim() ;
+			if( rule.isEmpty() ) continue ;
+			int ix = rule.lastIndexOf( '=' ) ;
+			if( ix < 1 ) {
+				throw new IllegalArgumentException( "Expiry rule '" + rule + "' should be regex=minutes" ) ;
+			}
+			patternList.add( Pattern.compile( rule.substring( 0, ix ) ) ) ;
+			ttlList.add( TimeUnit.MINUTES.toMillis( Long.parseLong( rule.substring( ix+1 ).trim() ) ) ) ;
+		}
+		this.patterns = patternList.toArray( new Pattern[0] ) ;
+		this.timeToLive = new long[ ttlList.size() ] ;
+		for( int i=0 ; i<timeToLive.length ; i++ ) {
+			timeToLive[i] = ttlList.get( i ) ;
+		}
+		this.buckets = new ConcurrentHashMap<>() ;
+		this.bucketLock = new ReentrantReadWriteLock() ;
+		this.firedUpTo = System.currentTimeMillis() / BUCKET_MILLIS ;
+		this.numExpired = new AtomicLong() ;
+	}
+
+	/**
+	 * Check for expired elements every bucket, until closed
+	 */
+	synchronized void start() {
+		if( scheduler == null ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "Element expiry" ) ;
+				t.setDaemon( true ) ;
+				return t ;
+			} ) ;
+			scheduler.scheduleWithFixedDelay( () -> {
+				try {
+					expire( System.currentTimeMillis() ) ;
+				} catch( Throwable t ) {
+					logger.error( "Failed to expire elements", t ) ;
+				}
+			}, BUCKET_MILLIS, BUCKET_MILLIS, TimeUnit.MILLISECONDS ) ;
+		}
+	}
+
+	public synchronized void close() {
+		if( scheduler != null ) {
+			scheduler.shutdownNow() ;
+			scheduler = null ;
+		}
+	}
+
+	/**
+	 * @param invariantKey an element key
+	 * @return how long (millis) elements with the key live, or -1 for ever
+	 */
+	long timeToLive( String invariantKey ) {
+		for( int i=0 ; i<patterns.length ; i++ ) {
+			if( patterns[i].matcher( invariantKey ).matches() ) {
+				return timeToLive[i] ;
+			}
+		}
+		return -1 ;
+	}
+
+	/**
+	 * Called by the store when an element is saved. Never called
+	 * concurrently for the same key.
+	 *
+	 * @param previous the element replaced, or null
+	 * @param current the element saved
+	 */
+	void update( DataElement previous, DataElement current ) {
+		long ttl = timeToLive( current.getInvariantKey() ) ;
+		if( ttl < 0 ) {
+			return ;
+		}
+		long bucket = bucketOf( current.getCreatedTime() + ttl ) ;
+		long previousBucket = previous==null ? Long.MIN_VALUE : bucketOf( previous.getCreatedTime() + ttl ) ;
+		if( bucket == previousBucket ) {
+			return ;
+		}
+		bucketLock.readLock().lock() ;
+		try {
+			if( previous != null ) {
+				Set<String> keys = buckets.get( previousBucket ) ;
+				if( keys != null ) keys.remove( current.getInvariantKey() ) ;
+			}
+			// already due? then it goes in the next bucket to be taken
+			buckets.computeIfAbsent( Math.max( bucket, firedUpTo+1 ), b -> ConcurrentHashMap.newKeySet() ).add( current.getInvariantKey() ) ;
+		} finally {
+			bucketLock.readLock().unlock() ;
+		}
+	}
+
+	/**
+	 * The bucket for an expiry time is the first whose start is at or after it,
+	 * so by the time a bucket is due everything in it has expired.
+	 *
+	 * @param expiryTime when an element expires (millis)
+	 * @return the bucket to keep its key in
+	 */
+	private static long bucketOf( long expiryTime ) {
+		return Math.floorDiv( expiryTime + BUCKET_MILLIS - 1, BUCKET_MILLIS ) ;
+	}
+
+	/**
+	 * Forget everything, e.g. the store has been cleared
+	 */
+	void clear() {
+		bucketLock.writeLock().lock() ;
+		try {
+			buckets.clear() ;
+		} finally {
+			bucketLock.writeLock().unlock() ;
+		}
+	}
+
+	/**
+	 * Expire everything in buckets due by a time
+	 *
+	 * @param now the time to check against
+	 * @return the number of elements expired
+	 */
+	int expire( long now ) {
+		long nowBucket = now / BUCKET_MILLIS ;
+		List<Set<String>> due = new ArrayList<>() ;
+		bucketLock.writeLock().lock() ;
+		try {
+			for( long b=firedUpTo+1 ; b<=nowBucket ; b++ ) {
+				Set<String> keys = buckets.remove( b ) ;
+				if( keys != null ) due.add( keys ) ;
+			}
+			firedUpTo = Math.max( firedUpTo, nowBucket ) ;
+		} finally {
+			bucketLock.writeLock().unlock() ;
+		}
+		int rc = 0 ;
+		for( Set<String> keys : due ) {
+			for( String invariantKey : keys ) {
+				long ttl = timeToLive( invariantKey ) ;
+				if( dataElementStore.expire( invariantKey, now - ttl ) ) {
+					rc++ ;
+				}
+			}
+		}
+		if( rc > 0 ) {
+			numExpired.addAndGet( rc ) ;
+			logger.debug( "Expired {} elements", rc ) ;
+		}
+		return rc ;
+	}
+
+	public String toString() {
+		int waiting = 0 ;
+		for( Set<String> keys : buckets.values() ) {
+			waiting += keys.size() ;
+		}
+		return "Expiry: " + numExpired.get() + " elements expired, " + waiting + " waiting in " + buckets.size() + " buckets" ;
+	}
+}
@@ -0,0 +1,194 @@
+package com.rc.dataview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.rc.datamodel.AttributeHandle;
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementAttributes;
+
+/**
+ * An inverted index of the store, it maps each attribute label to the
+ * invariant keys of the elements having that label (the posting list).
+ * A drill-through query intersects the posting lists of the attributes it
+ * tests, rather than scanning every element.
+ *
+ * Labels are indexed as the query tests them: a perimeter label that is
+ * null is indexed as "-", a null core label isn't indexed.
+ *
+ * The index is a superset of the truth, candidates must still be checked
+ * against the element. Updates for one key must not run concurrently, which
+ * is what the store (or sharded store) already guarantees.
+ *
+ * @author richard
+ * @see DataElementStore#query(String, String, int)
+ */
+class DataElementIndex {
+
+	private final static long POSTING_BYTES = 40 ;		// set node & table slot
+
+	// attribute name => label => invariant keys
+	private final Map<String,Map<String,Set<String>>> postings ;
+	private final LongAdder numPostings ;
+
+	DataElementIndex() {
+		this.postings = new ConcurrentHashMap<>() ;
+		this.numPostings = new LongAdder() ;
+	}
+
+	/**
+	 * Index a new element, replacing what was indexed for the previous
+	 * element with the same key. Only labels that changed are touched.
+	 *
+	 * @param previous the element being replaced (may be null)
+	 * @param current the new element
+	 */
+	void update( DataElement previous, DataElement current ) {
+		Map<String,Set<String>> oldLabels = previous==null ? Collections.emptyMap() : labels( previous ) ;
+		Map<String,Set<String>> newLabels = labels( current ) ;
+		String invariantKey = current.getInvariantKey() ;
+
+		for( var entry : oldLabels.entrySet() ) {
+			Set<String> keep = newLabels.getOrDefault( entry.getKey(), Collections.emptySet() ) ;
+			Map<String,Set<String>> attributePostings = postings.get( entry.getKey() ) ;
+			if( attributePostings == null ) continue ;
+			for( String label : entry.getValue() ) {
+				if( !keep.contains( label ) ) {
+					Set<String> keys = attributePostings.get( label ) ;
+					if( keys != null && keys.remove( invariantKey ) ) numPostings.decrement() ;
+				}
+			}
+		}
+		for( var entry : newLabels.entrySet() ) {
+			Set<String> already = oldLabels.getOrDefault( entry.getKey(), Collections.emptySet() ) ;
+			Map<String,Set<String>> attributePostings = postings.computeIfAbsent( entry.getKey(), k -> new ConcurrentHashMap<>() ) ;
+			for( String label : entry.getValue() ) {
+				if( !already.contains( label ) ) {
+					if( attributePostings.computeIfAbsent( label, k -> ConcurrentHashMap.newKeySet() ).add( invariantKey ) ) numPostings.increment() ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove an element from the index, e.g. when it expires
+	 *
+	 * @param previous the element removed from the store
+	 */
+	void remove( DataElement previous ) {
+		String invariantKey = previous.getInvariantKey() ;
+		for( var entry : labels( previous ).entrySet() ) {
+			Map<String,Set<String>> attributePostings = postings.get( entry.getKey() ) ;
+			if( attributePostings == null ) continue ;
+			for( String label : entry.getValue() ) {
+				Set<String> keys = attributePostings.get( label ) ;
+				if( keys != null && keys.remove( invariantKey ) ) numPostings.decrement() ;
+			}
+		}
+	}
+
+	/**
+	 * Find the keys of elements which may match the tests.
+	 *
+	 * @param matchingTests attribute name => allowed labels
+	 * @return the candidate invariant keys, or null if the tests can't use the index (so scan everything)
+	 */
+	Set<String> candidates( Map<String,Set<String>> matchingTests ) {
+		if( matchingTests.isEmpty() ) return null ;
+
+		// for each test, the posting lists of any allowed label
+		List<List<Set<String>>> tests = new ArrayList<>( matchingTests.size() ) ;
+		int driver = -1 ;
+		long driverSize = Long.MAX_VALUE ;
+		for( var entry : matchingTests.entrySet() ) {
+			Map<String,Set<String>> attributePostings = postings.get( entry.getKey() ) ;
+			List<Set<String>> lists = new ArrayList<>( entry.getValue().size() ) ;
+			long size = 0 ;
+			if( attributePostings != null ) {
+				for( String label : entry.getValue() ) {
+					Set<String> keys = attributePostings.get( label ) ;
+					if( keys != null && !keys.isEmpty() ) {
+						lists.add( keys ) ;
+						size += keys.size() ;
+					}
+				}
+			}
+			if( size == 0 ) return Collections.emptySet() ;
+			if( size < driverSize ) {
+				driverSize = size ;
+				driver = tests.size() ;
+			}
+			tests.add( lists ) ;
+		}
+
+		// start from the smallest union, keep keys found in every other test
+		Set<String> rc = new HashSet<>() ;
+		for( Set<String> keys : tests.get( driver ) ) {
+			rc.addAll( keys ) ;
+		}
+		for( int t=0 ; t<tests.size() && !rc.isEmpty() ; t++ ) {
+			if( t == driver ) continue ;
+			List<Set<String>> lists = tests.get( t ) ;
+			rc.removeIf( key -> !containedInAny( lists, key ) ) ;
+		}
+		return rc ;
+	}
+
+	void clear() {
+		postings.clear() ;
+		numPostings.reset() ;
+	}
+
+	/**
+	 * @return a rough count of the heap used by the posting lists
+	 */
+	long getEstimatedBytes() {
+		return numPostings.sum() * POSTING_BYTES ;
+	}
+
+	/**
+	 * @return how many different attribute labels are indexed
+	 */
+	int size() {
+		int rc = 0 ;
+		for( Map<String,Set<String>> attributePostings : postings.values() ) {
+			rc += attributePostings.size() ;
+		}
+		return rc ;
+	}
+
+	private static boolean containedInAny( List<Set<String>> lists, String key ) {
+		for( Set<String> keys : lists ) {
+			if( keys.contains( key ) ) return true ;
+		}
+		return false ;
+	}
+
+	// The distinct labels of each attribute in an element
+	private static Map<String,Set<String>> labels( DataElement element ) {
+		DataElementAttributes attributes = element.getDataElementAttributes() ;
+		String[] names = attributes.getAttributeNames() ;
+		Map<String,Set<String>> rc = new HashMap<>( names.length * 2 ) ;
+		for( int ix=0 ; ix<names.length ; ix++ ) {
+			Set<String> labels = new HashSet<>() ;
+			if( ix < attributes.getNumCoreAttributes() ) {
+				String label = element.getAttribute( names[ix] ) ;
+				if( label != null ) labels.add( label ) ;
+			} else {
+				AttributeHandle handle = attributes.getHandle( names[ix] ) ;
+				for( int i=0 ; i<element.size() ; i++ ) {
+					labels.add( element.getAttribute( i, handle ) ) ;
+				}
+			}
+			rc.put( names[ix], labels ) ;
+		}
+		return rc ;
+	}
+}
@@ -0,0 +1,371 @@
+package com.rc.dataview;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rc.agg.DataElementProcessor;
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementCodec;
+
+/**
+ * An append only record of every element accepted, so elements sent since the
+ * last snapshot (or batch) aren't lost if the server stops.
+ *
+ * Callers only put the element on a queue, a writer thread takes everything
+ * queued, encodes it (DataElementCodec) and writes it to the current segment file
+ * with one force to disk for the lot (group commit). When a segment is bigger than
+ * the segment size a new one is started. Each segment is a complete codec stream,
+ * so it can be read on its own.
+ *
+ * Segments are named journal-nnnnnnnnnn.bin, replay reads them in name order.
+ * A snapshot rolls the journal to a new segment before it reads the store, and
+ * deletes the older segments once it's written, so the journal only holds
+ * what came after the last snapshot.
+ *
+ * @author richard
+ * @see DataElementCodec
+ */
+public class DataElementJournal implements AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger( DataElementJournal.class ) ;
+
+	private final static String SEGMENT_PREFIX = "journal-" ;
+	private final static String SEGMENT_SUFFIX = ".bin" ;
+	private final static long DEFAULT_SEGMENT_SIZE = 256L * 1024 * 1024 ;
+	private final static int QUEUE_SIZE = 64 * 1024 ;
+	private final static int MAX_BATCH = 16 * 1024 ;		// elements per group commit
+	private final static int BUFFER_SIZE = 4 * 1024 * 1024 ;
+
+	private final File directory ;
+	private final long segmentSize ;
+	private final BlockingQueue<Object> queue ;			// DataElements, CountDownLatches from flush, or Runnables to run on the writer thread
+	private final DataElementCodec.Writer codec ;
+	private final Thread writerThread ;
+	private volatile boolean running ;
+	private volatile boolean failed ;		// a write failed, elements are no longer journaled
+
+	private ByteBuffer buffer ;
+	private FileChannel segment ;
+	private int segmentNumber ;
+	private long numWritten ;
+
+	public DataElementJournal( File directory ) throws IOException {
+		this( directory, DEFAULT_SEGMENT_SIZE ) ;
+	}
+
+	/**
+	 * Open a journal, new segments follow any already in the directory
+	 *
+	 * @param directory where the segment files are
+	 * @param segmentSize start a new segment once one gets to this size
+	 * @throws IOException
+	 */
+	public DataElementJournal( File directory, long segmentSize ) throws IOException {
+		if( !directory.isDirectory() && !directory.mkdirs() ) {
+			throw new IOException( "Cannot create journal directory " + directory ) ;
+		}
+		this.directory = directory ;
+		this.segmentSize = segmentSize ;
+		this.queue = new ArrayBlockingQueue<>( QUEUE_SIZE ) ;
+		this.codec = new DataElementCodec.Writer() ;
+		this.buffer = ByteBuffer.allocateDirect( BUFFER_SIZE ) ;
+		File[] existing = segments( directory ) ;
+		this.segmentNumber = existing.length==0 ? 0 : segmentNumber( existing[existing.length-1] ) + 1 ;
+		openSegment() ;
+
+		this.running = true ;
+		this.writerThread = new Thread( this::writerLoop, "Journal writer" ) ;
+		this.writerThread.start() ;
+	}
+
+	/**
+	 * Add an element to the journal. It's written to disk a little later, by
+	 * the writer thread. If the writer falls a long way behind this waits.
+	 * After a write error elements are dropped (the error is logged), so the
+	 * aggregator keeps running without its journal.
+	 *
+	 * @param dataElement the element to record
+	 */
+	public void append( DataElement dataElement ) {
+		if( !running ) {
+			throw new IllegalStateException( "Journal " + directory + " is closed" ) ;
+		}
+		if( failed ) {
+			return ;
+		}
+		try {
+			queue.put( dataElement ) ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * Add many elements to the journal, in order
+	 *
+	 * @see #append(DataElement)
+	 */
+	public void appendAll( Collection<DataElement> dataElements ) {
+		for( DataElement dataElement : dataElements ) {
+			append( dataElement ) ;
+		}
+	}
+
+	/**
+	 * Wait until everything appended (by this thread) so far is on disk
+	 */
+	public void flush() {
+		if( failed ) {
+			return ;
+		}
+		CountDownLatch written = new CountDownLatch( 1 ) ;
+		try {
+			queue.put( written ) ;
+			while( !written.await( 1, TimeUnit.SECONDS ) && writerThread.isAlive() ) {
+				// the writer may stop without reaching our latch
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * Throw away everything in the journal so far, e.g. when the store is
+	 * cleared for a new batch. Elements appended after this are kept.
+	 */
+	public void truncate() {
+		if( failed ) {
+			return ;
+		}
+		try {
+			queue.put( (Runnable)this::deleteSegments ) ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+		flush() ;
+	}
+
+	/**
+	 * Start a new segment, once everything appended (by this thread) so far
+	 * is on disk in the current one.
+	 *
+	 * @return the number of the new segment, -1 if the journal has failed
+	 */
+	public int roll() {
+		if( failed ) {
+			return -1 ;
+		}
+		int[] rc = { -1 } ;
+		try {
+			queue.put( (Runnable)() -> {
+				try {
+					nextSegment() ;
+					rc[0] = segmentNumber ;
+				} catch( IOException e ) {
+					throw new UncheckedIOException( e ) ;
+				}
+			} ) ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+			return -1 ;
+		}
+		flush() ;
+		return rc[0] ;
+	}
+
+	/**
+	 * Delete the segments before a given one, e.g. once a snapshot holds
+	 * everything in them. The current segment is never deleted.
+	 *
+	 * @param firstSegment the oldest segment to keep, from roll()
+	 */
+	public void deleteBefore( int firstSegment ) {
+		if( failed || firstSegment < 0 ) {
+			return ;
+		}
+		try {
+			queue.put( (Runnable)() -> {
+				for( File file : segments( directory ) ) {
+					int n = segmentNumber( file ) ;
+					if( n >= firstSegment || n == segmentNumber ) break ;
+					try {
+						Files.delete( file.toPath() ) ;
+					} catch( IOException e ) {
+						logger.warn( "Failed to delete journal segment {}", file, e ) ;
+					}
+				}
+			} ) ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * Write anything queued and close the current segment
+	 */
+	public void close() {
+		running = false ;
+		try {
+			writerThread.join() ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	/**
+	 * Send every element in the journal, oldest first, to a processor
+	 *
+	 * @param directory where the segment files are
+	 * @param processor where to send the elements
+	 * @return the number of elements replayed
+	 * @throws IOException
+	 */
+	public static long replay( File directory, DataElementProcessor processor ) throws IOException {
+		long startTime = System.currentTimeMillis() ;
+		long numElements = 0 ;
+		File[] files = segments( directory ) ;
+		for( File file : files ) {
+			numElements += DataElementSnapshot.read( file, processor ) ;
+		}
+		logger.info( "Replayed {} elements from {} journal segments in {} mS", numElements, files.length, System.currentTimeMillis()-startTime ) ;
+		return numElements ;
+	}
+
+	/**
+	 * The segment files in a directory, in the order they were written
+	 *
+	 * @param directory where to look
+	 * @return the segment files, oldest first
+	 */
+	public static File[] segments( File directory ) {
+		File[] rc = directory.listFiles( (dir,name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) ) ;
+		if( rc == null ) return new File[0] ;
+		Arrays.sort( rc ) ;
+		return rc ;
+	}
+
+	private static int segmentNumber( File file ) {
+		String name = file.getName() ;
+		return Integer.parseInt( name.substring( SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length() ) ) ;
+	}
+
+	private void writerLoop() {
+		List<Object> batch = new ArrayList<>( MAX_BATCH ) ;
+		try {
+			while( running || !queue.isEmpty() ) {
+				Object first = queue.poll( 100, TimeUnit.MILLISECONDS ) ;
+				if( first == null ) continue ;
+				batch.add( first ) ;
+				queue.drainTo( batch, MAX_BATCH-1 ) ;
+				for( Object o : batch ) {
+					if( o instanceof DataElement ) {
+						write( (DataElement)o ) ;
+					} else if( o instanceof CountDownLatch ) {
+						commit() ;
+						((CountDownLatch)o).countDown() ;
+					} else {
+						// everything before the action is on disk first
+						commit() ;
+						((Runnable)o).run() ;
+					}
+				}
+				commit() ;
+				batch.clear() ;
+				if( segment.position() >= segmentSize ) {
+					nextSegment() ;
+				}
+			}
+		} catch( InterruptedException e ) {
+			logger.warn( "Journal writer interrupted, {} elements not written", queue.size() ) ;
+		} catch( IOException | UncheckedIOException e ) {
+			failed = true ;
+			logger.error( "Failed to write journal {}, journaling stopped", directory, e ) ;
+		} finally {
+			// don't leave flush callers waiting for ever
+			for( Object o : queue ) {
+				if( o instanceof CountDownLatch ) ((CountDownLatch)o).countDown() ;
+			}
+			try {
+				segment.close() ;
+			} catch( IOException ignore ) {
+				// nothing else to do
+			}
+			logger.info( "Journal closed after writing {} elements", numWritten ) ;
+		}
+	}
+
+	// write the buffer and wait for it to reach the disk, once per batch
+	private void commit() throws IOException {
+		if( buffer.position() > 0 ) {
+			writeBuffer() ;
+			segment.force( false ) ;
+		}
+	}
+
+	// on the writer thread: remove every segment and start a new one
+	private void deleteSegments() {
+		try {
+			segment.close() ;
+			for( File file : segments( directory ) ) {
+				Files.delete( file.toPath() ) ;
+			}
+			segmentNumber++ ;
+			openSegment() ;
+		} catch( IOException e ) {
+			throw new UncheckedIOException( e ) ;
+		}
+	}
+
+	private void write( DataElement dataElement ) throws IOException {
+		while( !codec.write( buffer, dataElement ) ) {
+			if( buffer.position() == 0 ) {
+				// one element bigger than the whole buffer
+				buffer = ByteBuffer.allocateDirect( buffer.capacity() * 2 ) ;
+			} else {
+				writeBuffer() ;
+			}
+		}
+		numWritten++ ;
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip() ;
+		while( buffer.hasRemaining() ) {
+			segment.write( buffer ) ;
+		}
+		buffer.clear() ;
+	}
+
+	private void nextSegment() throws IOException {
+		segment.close() ;
+		segmentNumber++ ;
+		openSegment() ;
+	}
+
+	private void openSegment() throws IOException {
+		File file = new File( directory, String.format( "%s%010d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX ) ) ;
+		segment = FileChannel.open( file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE ) ;
+		codec.reset() ;		// each segment repeats the schemas & labels it needs
+		logger.info( "Journal writing to {}", file ) ;
+	}
+
+	public String toString() {
+		return "Journal " + directory + " segment " + segmentNumber + ", " + numWritten + " elements written, " + queue.size() + " queued" ;
+	}
+}
@@ -0,0 +1,265 @@
+package com.rc.dataview;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rc.agg.DataElementProcessor;
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementCodec;
+
+/**
+ * Saves the contents of the store to a file, so a restart can load the
+ * file rather than wait for the whole batch to be sent again.
+ *
+ * The file is written through memory mapped chunks in the DataElementCodec
+ * format (the same as a .bin input file). It's written to a temporary file and
+ * renamed when complete, so there's always one whole snapshot on disk.
+ *
+ * Elements keep arriving while a snapshot is written, each element in the
+ * file is a complete version, but it may be the one before or after an
+ * update made during the write. No snapshot is written while a batch replacing
+ * all the data is loading, the last one written stays until the batch is done.
+ *
+ * With a journal, each snapshot starts a new journal segment before it reads
+ * the store and deletes the older segments once it's written. A restart loads
+ * the snapshot and replays only the journal written since.
+ *
+ * @author richard
+ * @see DataElementCodec
+ */
+public class DataElementSnapshot implements AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger( DataElementSnapshot.class ) ;
+
+	private final static long CHUNK_SIZE = 64L * 1024 * 1024 ;
+	private final static int PROCESS_BATCH_SIZE = 1_000 ;
+
+	private final DataElementStore dataElementStore ;
+	private final File snapshotFile ;
+	private DataElementJournal journal ;		// null if not journaling
+	private IntSupplier journalCheckpoint ;		// rolls the journal, see useJournal
+	private ScheduledExecutorService scheduler ;
+
+	public DataElementSnapshot( DataElementStore dataElementStore, File snapshotFile ) {
+		this.dataElementStore = dataElementStore ;
+		this.snapshotFile = snapshotFile ;
+	}
+
+	/**
+	 * Trim a journal at each snapshot. Before the store is read, the checkpoint
+	 * must roll the journal (DataElementJournal.roll) and wait until everything
+	 * journaled before the new segment is in the store, then return the new
+	 * segment's number. When the snapshot is written the segments before that
+	 * one are deleted.
+	 *
+	 * @param journal the journal to trim
+	 * @param journalCheckpoint rolls the journal, returns the first segment not in the snapshot
+	 */
+	public synchronized void useJournal( DataElementJournal journal, IntSupplier journalCheckpoint ) {
+		this.journal = journal ;
+		this.journalCheckpoint = journalCheckpoint ;
+	}
+
+	/**
+	 * Write a snapshot every so often, until closed.
+	 *
+	 * @param period how long between snapshots
+	 * @param unit the units of period
+	 */
+	public synchronized void start( long period, TimeUnit unit ) {
+		if( scheduler != null ) {
+			throw new IllegalStateException( "Snapshots of " + snapshotFile + " are already running" ) ;
+		}
+		scheduler = Executors.newSingleThreadScheduledExecutor( r -> new Thread( r, "Snapshot writer" ) ) ;
+		scheduler.scheduleWithFixedDelay( () -> {
+			try {
+				write() ;
+			} catch( Throwable t ) {
+				logger.error( "Failed to write snapshot {}", snapshotFile, t ) ;
+			}
+		}, period, period, unit ) ;
+	}
+
+	/**
+	 * Stop the periodic snapshots. A snapshot being written is finished first.
+	 */
+	public synchronized void close() {
+		if( scheduler != null ) {
+			scheduler.shutdown() ;
+			try {
+				scheduler.awaitTermination( 1, TimeUnit.MINUTES ) ;
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt() ;
+			}
+			scheduler = null ;
+		}
+	}
+
+	public boolean exists() {
+		return snapshotFile.canRead() ;
+	}
+
+	/**
+	 * Remove the snapshot file, e.g. when it no longer matches what's in the store.
+	 * The next periodic snapshot writes a new one.
+	 */
+	public synchronized void delete() {
+		if( snapshotFile.exists() && !snapshotFile.delete() ) {
+			logger.warn( "Failed to delete snapshot {}", snapshotFile ) ;
+		}
+	}
+
+	/**
+	 * Write the store to the snapshot file now, unless a new batch is loading
+	 *
+	 * @return the number of elements written, -1 if a new batch is loading
+	 * @throws IOException
+	 */
+	public synchronized int write() throws IOException {
+		if( dataElementStore.isLoadingBatch() ) {
+			logger.info( "Not writing {} while a new batch is loading", snapshotFile ) ;
+			return -1 ;
+		}
+		long startTime = System.currentTimeMillis() ;
+		File tmpFile = new File( snapshotFile.getPath() + ".tmp" ) ;
+		final int firstSegment = journal==null ? -1 : journalCheckpoint.getAsInt() ;
+		int numElements ;
+		long fileSize ;
+		try( FileChannel channel = FileChannel.open( tmpFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE ) ) {
+			MappedChunkWriter writer = new MappedChunkWriter( channel ) ;
+			dataElementStore.forEach( writer::write ) ;
+			fileSize = writer.finish() ;
+			numElements = writer.numElements ;
+			channel.truncate( fileSize ) ;
+			channel.force( true ) ;
+		}
+		Files.move( tmpFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE ) ;
+		logger.info( "Wrote {} elements ({}Mb) to {} in {} mS", numElements, fileSize/0x100000, snapshotFile, System.currentTimeMillis()-startTime ) ;
+		if( journal != null ) {
+			// a crash before this replays the older segments as well, the last version of each key still wins
+			journal.deleteBefore( firstSegment ) ;
+		}
+		return numElements ;
+	}
+
+	/**
+	 * Load the snapshot into the store, as a new batch. The views are
+	 * rebuilt as the elements are processed.
+	 *
+	 * @return the number of elements loaded
+	 * @throws IOException
+	 */
+	public int load() throws IOException {
+		long startTime = System.currentTimeMillis() ;
+		dataElementStore.startBatch( true ) ;
+		int numElements = read( snapshotFile, dataElementStore ) ;
+		dataElementStore.endBatch() ;
+		logger.info( "Loaded {} elements from {} in {} mS", numElements, snapshotFile, System.currentTimeMillis()-startTime ) ;
+		return numElements ;
+	}
+
+	/**
+	 * Read a file of binary encoded DataElements into a processor. The file is
+	 * memory mapped a chunk at a time, a record crossing a chunk boundary is
+	 * read again at the start of the next chunk.
+	 *
+	 * @param file the file to read
+	 * @param processor where to send the elements, in batches
+	 * @return the number of elements read
+	 * @throws IOException
+	 */
+	public static int read( File file, DataElementProcessor processor ) throws IOException {
+		int numElements = 0 ;
+		try( FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ ) ) {
+			DataElementCodec.Reader reader = new DataElementCodec.Reader() ;
+			List<DataElement> pending = new ArrayList<>( PROCESS_BATCH_SIZE ) ;
+			long position = 0 ;
+			long chunkSize = CHUNK_SIZE ;
+			final long fileSize = channel.size() ;
+			while( position < fileSize ) {
+				long mapSize = Math.min( chunkSize, fileSize-position ) ;
+				MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, position, mapSize ) ;
+				for( DataElement dataElement = reader.read(buffer) ; dataElement != null ; dataElement = reader.read(buffer) ) {
+					pending.add( dataElement ) ;
+					if( pending.size() >= PROCESS_BATCH_SIZE ) {
+						processor.processAll( pending ) ;
+						pending.clear() ;
+					}
+					numElements++ ;
+				}
+				if( buffer.position() == 0 ) {
+					if( position + mapSize >= fileSize ) {
+						logger.warn( "Incomplete record at the end of {}, offset {}", file, position ) ;
+						break ;
+					}
+					chunkSize *= 2 ;		// a record bigger than a chunk
+					continue ;
+				}
+				position += buffer.position() ;
+			}
+			if( !pending.isEmpty() ) {
+				processor.processAll( pending ) ;
+			}
+		}
+		return numElements ;
+	}
+
+	// Writes a stream of elements through mapped chunks of a file
+	private static final class MappedChunkWriter {
+		final FileChannel channel ;
+		final DataElementCodec.Writer writer = new DataElementCodec.Writer() ;
+		long chunkStart = 0 ;
+		long chunkSize = CHUNK_SIZE ;
+		MappedByteBuffer buffer ;
+		int numElements ;
+
+		MappedChunkWriter( FileChannel channel ) {
+			this.channel = channel ;
+		}
+
+		void write( DataElement dataElement ) {
+			try {
+				if( buffer == null ) {
+					buffer = channel.map( FileChannel.MapMode.READ_WRITE, chunkStart, chunkSize ) ;
+				}
+				while( !writer.write( buffer, dataElement ) ) {
+					// a record bigger than an empty chunk needs a bigger chunk
+					if( buffer.position() == 0 ) chunkSize *= 2 ;
+					chunkStart += buffer.position() ;
+					buffer.force() ;
+					buffer = channel.map( FileChannel.MapMode.READ_WRITE, chunkStart, chunkSize ) ;
+				}
+				numElements++ ;
+			} catch( IOException e ) {
+				throw new RuntimeException( e ) ;
+			}
+		}
+
+		// returns the length of the data written
+		long finish() {
+			if( buffer == null ) return 0 ;
+			buffer.force() ;
+			return chunkStart + buffer.position() ;
+		}
+	}
+
+	public String toString() {
+		return "Snapshot " + snapshotFile + ( exists() ? " last written " + new Date( snapshotFile.lastModified() ) : " not written" ) ;
+	}
+}
@@ -2,6 +2,9 @@ package com.rc.dataview;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -9,6 +12,9 @@ import org.slf4j.LoggerFactory;
 import com.rc.agg.DataElementProcessor;
 import com.rc.datamodel.DataElement;
 import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementMap;
+import com.rc.datamodel.HeapDataElementMap;
+import com.rc.datamodel.OffHeapDataElementMap;
 
 /**
  * This is the cache of all currently valid data. It's big and stupid and fast!
@@ -22,11 +28,30 @@ import com.rc.datamodel.DataElementAttributes;
 public class DataElementStore  implements DataElementProcessor {
 
 	final static Logger logger = LoggerFactory.getLogger( DataElementStore.class ) ;
+	// Scans of more elements than this are split across the common pool
+	private final static long QUERY_PARALLELISM_THRESHOLD = 10_000 ;
+	// Set this system property to true to keep the elements off heap
+	public final static String OFF_HEAP_PROPERTY = "liveaggregator.offheap" ;
+	// Set this system property to expire elements, rules are regex=minutes;... (@see DataElementExpiry)
+	public final static String EXPIRY_PROPERTY = "liveaggregator.expiry" ;
+	// Set this system property to limit the estimated heap used (Mb), ingest slows then rejects new keys (@see HeapBudget)
+	public final static String HEAP_BUDGET_PROPERTY = "liveaggregator.heap.budget" ;
+	// How long to hold up each ingest call when near the heap budget
+	private final static long THROTTLE_NANOS = 1_000_000 ;
 	private final static DataElementStore instance = new DataElementStore() ;
 
-	private final Map<String,DataElement> 	currentElements ;
-	private boolean							serverBatchComplete ;
-	private Map<String,DataElementDataView>	availableViews ;		// current available views
+	private volatile Generation				current ;			// the elements served to queries
+	private volatile Generation				shadow ;			// a new batch being loaded, null if none
+	private final DataElementExpiry			expiry ;			// null if elements never expire
+	private final HeapBudget				heapBudget ;
+	private final LongAdder					numStale ;			// replacements dropped, their sequence was old
+	private final LongAdder					numUnchanged ;		// replacements identical to the element held
+	private volatile boolean				serverBatchComplete ;
+	private volatile Map<String,DataElementDataView>	availableViews ;		// current available views
+	private volatile ViewRebuild			viewRebuild ;		// null unless new views are being filled
+	private final Object					viewLock ;			// held while views are swapped in
+	private final Map<DataElementAttributes,Boolean>	attributesSeen ;	// weak, to report dictionary sizes
+	private volatile DataElementAttributes	lastAttributes ;	// saves a lookup in attributesSeen
 	private int								numberDrillThroughs ;
 	private final Date						startedAt ;
 	
@@ -34,10 +59,24 @@ public class DataElementStore  implements DataElementProcessor {
 	 * The singleton constructor. Sets up a huge hash map to store data
 	 */
 	private DataElementStore() {
-		currentElements =  new ConcurrentHashMap<>( 5_000_011 ) ;
+		current = newGeneration( 5_000_011 ) ;
+		shadow = null ;
+		String expiryRules = System.getProperty( EXPIRY_PROPERTY ) ;
+		if( expiryRules != null ) {
+			expiry = new DataElementExpiry( this, expiryRules ) ;
+			expiry.start() ;
+		} else {
+			expiry = null ;
+		}
 		availableViews = new HashMap<>() ;
+		viewLock = new Object() ;
+		attributesSeen = Collections.synchronizedMap( new WeakHashMap<>() ) ;
 		numberDrillThroughs = 0 ;
 		startedAt = new Date() ;
+		numStale = new LongAdder() ;
+		numUnchanged = new LongAdder() ;
+		heapBudget = new HeapBudget( this, Long.getLong( HEAP_BUDGET_PROPERTY, 0 ) * 0x100000 ) ;
+		heapBudget.start() ;
 	}
 
 
@@ -58,11 +97,40 @@ public class DataElementStore  implements DataElementProcessor {
 	}
 
 	/**
-	 * Empty all elements from the cache. Used at start batch.
+	 * Empty all elements from the cache, and forget any batch being loaded.
 	 * 
 	 */
 	public void clear() {		
-		currentElements.clear(); 
+		shadow = null ;
+		current.elements.clear(); 
+		current.index.clear() ;
+		if( expiry != null ) {
+			expiry.clear() ;
+		}
+	}
+
+	// One complete set of elements and their index. A new batch is loaded
+	// into its own generation, while the current one is still served.
+	private static final class Generation {
+		final DataElementMap elements ;
+		final DataElementIndex index ;
+		Generation( DataElementMap elements ) {
+			this.elements = elements ;
+			this.index = new DataElementIndex() ;
+		}
+	}
+
+	private static Generation newGeneration( int expectedSize ) {
+		if( Boolean.getBoolean( OFF_HEAP_PROPERTY ) ) {
+			return new Generation( new OffHeapDataElementMap() ) ;
+		}
+		return new Generation( new HeapDataElementMap( Math.max( 16, expectedSize ) ) ) ;
+	}
+
+	// Where new elements go: the batch being loaded, if there is one
+	private Generation ingestGeneration() {
+		Generation rc = shadow ;
+		return rc==null ? current : rc ;
 	}
 
 	/**
@@ -71,55 +139,252 @@ public class DataElementStore  implements DataElementProcessor {
 	 * 
 	 * Call this and everything just works :)
 	 * 
+	 * A replacement is normally sent to the views as one element holding only the
+	 * changed values. If that can't be done (e.g. the core labels changed) the
+	 * previous element is negated and sent along with the replacement.
+	 * 
+	 * Near the heap budget this slows down, over it elements with new keys
+	 * are dropped (@see HeapBudget).
+	 * 
+	 * An element with a sequence is dropped if the one held is the same or a
+	 * later version (@see DataElement#supersedes), nothing is sent to the views.
+	 * So a source can be replayed, or sent on many threads, without resyncing.
+	 * 
+	 * A replacement identical to the element held is saved (it's newer) but
+	 * nothing else needs to know, so it's not sent to the views.
+	 * 
+	 * While a new batch is loading elements go to the new generation, not the
+	 * one being served (@see #startBatch(boolean)).
+	 * 
 	 */
 	public void process(DataElement dataElement) {
-		DataElement previous = currentElements.put( dataElement.getInvariantKey(), dataElement) ;
-		if( previous != null ) {
+		final Generation generation = ingestGeneration() ;
+		HeapBudget.State budgetState = heapBudget.getState() ;
+		if( budgetState != HeapBudget.State.OK ) {
+			if( budgetState == HeapBudget.State.REJECT && generation.elements.get( dataElement.getInvariantKey() ) == null ) {
+				heapBudget.rejected( 1 ) ;
+				return ;
+			}
+			throttle() ;
+		}
+		dataElement.getContentHash() ;		// before it's shared, see sameContent below
+		seen( dataElement.getDataElementAttributes() ) ;
+		DataElement previous = generation.elements.put( dataElement ) ;
+		if( previous != null && previous.supersedes( dataElement ) ) {
+			numStale.increment() ;
+			return ;
+		}
+		if( expiry != null ) {
+			expiry.update( previous, dataElement ) ;
+		}
+		if( previous != null && dataElement.sameContent( previous ) ) {
+			numUnchanged.increment() ;
+			return ;
+		}
+		generation.index.update( previous, dataElement ) ;
+		ViewRebuild viewRebuild = this.viewRebuild ;
+		if( viewRebuild != null ) {
+			viewRebuild.update( dataElement ) ;
+		}
+		Collection<DataElementDataView> views = liveViews( viewRebuild ) ;
+		DataElement delta = previous==null ? null : dataElement.difference( previous ) ;
+		if( delta != null ) {
+			if( delta.size() > 0 ) {
+				for( DataElementDataView dedv : views ) {
+					dedv.process( delta ) ;
+				}
+			}
+		} else if( previous != null ) {
 			DataElement negatedCopy = previous.negatedCopy() ;
-			for( DataElementDataView dedv : availableViews.values() ) {
+			for( DataElementDataView dedv : views ) {
 				dedv.process( negatedCopy ) ;
 				dedv.process( dataElement ) ;
 			}
 		} else {
-			for( DataElementDataView dedv : availableViews.values() ) {
+			for( DataElementDataView dedv : views ) {
 				dedv.process( dataElement ) ;
 			}
 		}
 	}
 
 	/**
-	 * When a view changes during processing we need to replay
-	 * all current data points to all (new) views. This will 
-	 * interrupt processing.
+	 * Process a batch of elements. Each element is stored as in process, but
+	 * what has to be sent to the views is collected up and each view gets
+	 * it all in one call.
 	 * 
+	 * @see #process(DataElement)
+	 * @param dataElements the elements to process, in order
 	 */
-	protected synchronized void reprocess() throws InterruptedException {
-		// If we're in the middle of reprocessing a batch
-		// don't do anything, let the current batch finish on
-		// its own.
-		if( serverBatchComplete ) {
-			for( DataElement dataElement : currentElements.values() ) {
-				for( DataElementDataView dedv : availableViews.values() ) {
-					dedv.process( dataElement ) ;
+	@Override
+	public void processAll(Collection<DataElement> dataElements) {
+		final Generation generation = ingestGeneration() ;
+		HeapBudget.State budgetState = heapBudget.getState() ;
+		if( budgetState == HeapBudget.State.REJECT ) {
+			dataElements = withoutNewKeys( generation, dataElements ) ;
+		}
+		if( budgetState != HeapBudget.State.OK ) {
+			throttle() ;
+		}
+		List<DataElement> toSend = new ArrayList<>( dataElements.size() ) ;
+		List<DataElement> saved = null ;		// only made if something is stale
+		int numSaved = 0 ;
+		for( DataElement dataElement : dataElements ) {
+			dataElement.getContentHash() ;		// before it's shared, see sameContent below
+			seen( dataElement.getDataElementAttributes() ) ;
+			DataElement previous = generation.elements.put( dataElement ) ;
+			if( previous != null && previous.supersedes( dataElement ) ) {
+				numStale.increment() ;
+				if( saved == null ) {
+					saved = new ArrayList<>( dataElements.size() ) ;
+					Iterator<DataElement> it = dataElements.iterator() ;
+					for( int i=0 ; i<numSaved ; i++ ) {
+						saved.add( it.next() ) ;
+					}
 				}
+				continue ;
+			}
+			if( saved != null ) {
+				saved.add( dataElement ) ;
+			}
+			numSaved++ ;
+			if( expiry != null ) {
+				expiry.update( previous, dataElement ) ;
+			}
+			if( previous != null && dataElement.sameContent( previous ) ) {
+				numUnchanged.increment() ;
+				continue ;
+			}
+			generation.index.update( previous, dataElement ) ;
+			addChanges( toSend, previous, dataElement ) ;
+		}
+		ViewRebuild viewRebuild = this.viewRebuild ;
+		if( viewRebuild != null ) {
+			viewRebuild.updateAll( saved==null ? dataElements : saved ) ;
+		}
+		if( !toSend.isEmpty() ) {
+			for( DataElementDataView dedv : liveViews( viewRebuild ) ) {
+				dedv.processAll( toSend ) ;
+			}
+		}
+	}
+
+	// Over the heap budget: keep only replacements of elements already held
+	private Collection<DataElement> withoutNewKeys( Generation generation, Collection<DataElement> dataElements ) {
+		List<DataElement> rc = new ArrayList<>( dataElements.size() ) ;
+		for( DataElement dataElement : dataElements ) {
+			if( generation.elements.get( dataElement.getInvariantKey() ) != null ) {
+				rc.add( dataElement ) ;
+			}
+		}
+		if( rc.size() < dataElements.size() ) {
+			heapBudget.rejected( dataElements.size() - rc.size() ) ;
+		}
+		return rc ;
+	}
+
+	// Near (or over) the heap budget: slow the caller down so clients & views can catch up
+	private void throttle() {
+		heapBudget.throttled() ;
+		LockSupport.parkNanos( THROTTLE_NANOS ) ;
+	}
+
+	/**
+	 * Remove an element, if it was created at or before a time, and take it
+	 * out of the views. The views are sent the negated element, as for a
+	 * replacement that can't be sent as a difference. Elements are expired
+	 * from the generation being loaded, if there is one.
+	 * 
+	 * @param invariantKey the key of the element to remove
+	 * @param latestCreatedTime only remove an element created at or before this
+	 * @return true if an element was removed
+	 */
+	boolean expire( String invariantKey, long latestCreatedTime ) {
+		final Generation generation = ingestGeneration() ;
+		DataElement removed = generation.elements.removeIfOlder( invariantKey, latestCreatedTime ) ;
+		if( removed == null ) {
+			return false ;
+		}
+		generation.index.remove( removed ) ;
+		ViewRebuild viewRebuild = this.viewRebuild ;
+		if( viewRebuild != null ) {
+			viewRebuild.remove( removed ) ;
+		}
+		DataElement negatedCopy = removed.negatedCopy() ;
+		for( DataElementDataView dedv : liveViews( viewRebuild ) ) {
+			dedv.process( negatedCopy ) ;
+		}
+		return true ;
+	}
+
+	/**
+	 * Work out what a view needs to be sent when an element replaces another.
+	 * Usually one element holding the changed values, but if that can't be
+	 * made, the negated previous element and the replacement.
+	 * 
+	 * @param toSend where to add the elements to send
+	 * @param previous the element replaced, or null if there wasn't one
+	 * @param current the replacement
+	 */
+	static void addChanges( List<DataElement> toSend, DataElement previous, DataElement current ) {
+		DataElement delta = previous==null ? null : current.difference( previous ) ;
+		if( delta != null ) {
+			if( delta.size() > 0 ) {
+				toSend.add( delta ) ;
 			}
-			endBatch();
+		} else if( previous != null ) {
+			toSend.add( previous.negatedCopy() ) ;
+			toSend.add( current ) ;
+		} else {
+			toSend.add( current ) ;
 		}
 	}
 
+	// The views to send an update to. Views still being rebuilt get their
+	// updates from the rebuild, even once they're available.
+	private Collection<DataElementDataView> liveViews( ViewRebuild viewRebuild ) {
+		Collection<DataElementDataView> views = availableViews.values() ;
+		if( viewRebuild == null ) {
+			return views ;
+		}
+		List<DataElementDataView> rc = new ArrayList<>( views.size() ) ;
+		for( DataElementDataView dedv : views ) {
+			if( !viewRebuild.isPending( dedv ) ) {
+				rc.add( dedv ) ;
+			}
+		}
+		return rc ;
+	}
+
 	/**
-	 * Start a new batch - clear out existing data.
-	 * Note this is synchronized (with reprocess). We can't
-	 * reprocess and resend a batch at the same time.
+	 * Start a new batch. If it replaces the existing data, the new batch is
+	 * loaded into a new generation of elements (and of view cells) while the
+	 * current one is still served. At endBatch the generations are swapped,
+	 * and clients are sent only the cells which differ.
+	 * Note this is synchronized (with setViewDefinitions). A rebuild
+	 * of new views is cut short, the new batch fills them instead.
 	 * 
-	 * @param deleteContents remove all current data elements ?
+	 * @param deleteContents replace all current data elements ?
 	 */
 	public synchronized void startBatch( boolean deleteContents ) {
 		// prevent updates during initial population
 		serverBatchComplete = false ;
-		// remove any existing (old) data?
+		// replace the existing (old) data?
 		if( deleteContents ) {
-			clear() ;
+			// the batch will fill any views being rebuilt, so use them now
+			ViewRebuild rebuild = viewRebuild ;
+			if( rebuild != null ) {
+				rebuild.cancel() ;
+				synchronized( viewLock ) {
+					if( viewRebuild == rebuild ) {
+						useViews( rebuild ) ;
+					}
+				}
+			}
+			// any batch already loading is abandoned
+			shadow = newGeneration( current.elements.size() ) ;
+			if( expiry != null ) {
+				expiry.clear() ;
+			}
 		}
 
 		for( DataElementDataView dedv : availableViews.values() ) {
@@ -129,42 +394,121 @@ public class DataElementStore  implements DataElementProcessor {
 
 	/**
 	 * When a batch is done each view is notified, which usually
-	 * indicates all clients receive a new version of the aggregated data
+	 * indicates all clients receive a new version of the aggregated data.
+	 * A newly loaded generation replaces the current one.
 	 */
 	public synchronized void endBatch() {
 		serverBatchComplete = true ;
+		Generation loaded = shadow ;
+		if( loaded != null ) {
+			// current first, ingest must always find one or the other
+			current = loaded ;
+			shadow = null ;
+			logger.info( "Now serving the new batch of {} elements", loaded.elements.size() ) ;
+		}
 		for( DataElementDataView dedv : availableViews.values() ) {
 			dedv.endBatch() ;
 		}
 	}
 
 	
-	public void setViewDefinitions(ViewDefinitions viewDefinitions) {
+	/**
+	 * Install a new set of view definitions. A view whose definition hasn't
+	 * changed is kept, along with its clients & aggregated data. Only new or
+	 * changed views are created. They're filled from the current elements on
+	 * a background thread (@see ViewRebuild), and replace the current views
+	 * when they're ready. Ingest carries on while that happens.
+	 * 
+	 * @param viewDefinitions the (re)loaded definitions
+	 */
+	public synchronized void setViewDefinitions(ViewDefinitions viewDefinitions) {
 
 		logger.info( "Updating view definitions." );
 
+		// Any rebuild still running was for the previous definitions
+		ViewRebuild previousRebuild = viewRebuild ;
+		if( previousRebuild != null ) {
+			logger.info( "Abandoning the unfinished rebuild of {} views.", previousRebuild.getPendingViews().size() );
+			previousRebuild.cancel() ;
+			synchronized( viewLock ) {
+				viewRebuild = null ;
+			}
+			for( DataElementDataView dedv : previousRebuild.getPendingViews() ) {
+				dedv.resetAndStop() ;
+			}
+		}
+
 		Map<String,DataElementDataView>	futureAvailableViews = new HashMap<>() ; 
+		List<DataElementDataView> newViews = new ArrayList<>() ;
 
 		for( ViewDefinition vd : viewDefinitions.getViewDefinitions() ) {
-			DataElementDataView dedv = DataElementDataView.create( this, vd ) ;			
-			futureAvailableViews.put( dedv.getViewName(), dedv ) ;
+			DataElementDataView existingDedv = availableViews.get( vd.getName() ) ;
+			if( existingDedv != null && vd.isSameDefinition( existingDedv.getViewDefinition() ) ) {
+				futureAvailableViews.put( existingDedv.getViewName(), existingDedv ) ;
+			} else {
+				DataElementDataView dedv = DataElementDataView.create( this, vd ) ;			
+				futureAvailableViews.put( dedv.getViewName(), dedv ) ;
+				newViews.add( dedv ) ;
+			}
 		}
 
-		logger.info( "Shutting down existing views." );
+		logger.info( "Keeping {} views, {} new or changed.", futureAvailableViews.size()-newViews.size(), newViews.size() );
 
-		Collection<DataElementDataView> oldViews = availableViews.values() ; 
+		for( DataElementDataView dedv : newViews ) {
+			dedv.start();
+		}
+		ViewRebuild rebuild = new ViewRebuild( this, ingestGeneration().elements, QUERY_PARALLELISM_THRESHOLD, newViews, futureAvailableViews ) ;
+		if( newViews.isEmpty() ) {
+			synchronized( viewLock ) {
+				useViews( rebuild ) ;
+			}
+		} else {
+			// set before the scan starts, so no update is missed
+			viewRebuild = rebuild ;
+			rebuild.start() ;
+		}
+	}
 
-		for( DataElementDataView existingDedv : oldViews ) {
-			existingDedv.resetAndStop() ;
+	/**
+	 * Called when a rebuild has filled its views.
+	 * 
+	 * @param rebuild the rebuild that has finished
+	 */
+	void finishRebuild( ViewRebuild rebuild ) {
+		synchronized( viewLock ) {
+			if( viewRebuild == rebuild && !rebuild.isCancelled() ) {
+				useViews( rebuild ) ;
+			}
 		}
-		availableViews = futureAvailableViews ;
+	}
 
-		start() ;
-		try {
-			reprocess();
-		} catch( InterruptedException itsOK ) {
-			logger.info( "Thread interrupted, better be shutting down" ) ;
+	// Swap in the views from a rebuild, and stop the views they replace.
+	// Call holding the viewLock.
+	private void useViews( ViewRebuild rebuild ) {
+		Map<String,DataElementDataView> futureAvailableViews = rebuild.getFutureAvailableViews() ;
+		Map<String,DataElementDataView> oldViews = availableViews ;
+		// views first, a thread seeing the rebuild gone must see the new views
+		availableViews = futureAvailableViews ;
+		viewRebuild = null ;
+		if( serverBatchComplete ) {
+			for( DataElementDataView dedv : rebuild.getPendingViews() ) {
+				dedv.endBatch() ;
+			}
 		}
+		for( DataElementDataView existingDedv : oldViews.values() ) {
+			if( futureAvailableViews.get( existingDedv.getViewName() ) != existingDedv ) {
+				logger.info( "Shutting down view {}.", existingDedv.getViewName() );
+				existingDedv.resetAndStop() ;
+			}
+		}
+	}
+
+	/**
+	 * @return how far any rebuild of new views has got, or null if there isn't one
+	 */
+	public String getRebuildStatus() {
+		ViewRebuild rebuild = viewRebuild ;
+		return rebuild==null ? null : rebuild.toString() ;
 	}
 
 	/**
@@ -207,7 +551,25 @@ public class DataElementStore  implements DataElementProcessor {
 	 * @return the matching DataElement ( or null if not found )
 	 */
 	public DataElement get( String invariantKey ) {
-		return currentElements.get( invariantKey ) ;
+		return current.elements.get( invariantKey ) ;
+	}
+
+	/**
+	 * Call an action with every data element, one at a time on this thread.
+	 * These are the elements being served, so if a new batch is loading
+	 * they're the previous batch, not the part loaded so far.
+	 * 
+	 * @param action called with each element
+	 */
+	public void forEach( Consumer<DataElement> action ) {
+		current.elements.forEach( Long.MAX_VALUE, action ) ;
+	}
+
+	/**
+	 * @return true while a batch replacing all the data is loading, i.e. between startBatch(true) and endBatch
+	 */
+	public boolean isLoadingBatch() {
+		return shadow != null ;
 	}
 
 	/**
@@ -217,7 +579,76 @@ public class DataElementStore  implements DataElementProcessor {
 	 * @return The amount of stored data elements
 	 */
 	public int size() {
-		return currentElements.size() ;
+		return current.elements.size() ;
+	}
+
+	/**
+	 * Roughly how much heap the elements, and the query index, use. Both
+	 * generations are counted while a new batch is loading.
+	 * Elements kept off heap aren't counted.
+	 * 
+	 * @return the estimated number of bytes
+	 */
+	public long getEstimatedBytes() {
+		long rc = 0 ;
+		for( Generation generation : new Generation[] { current, shadow } ) {
+			if( generation != null ) {
+				rc += generation.elements.getEstimatedHeapBytes() + generation.index.getEstimatedBytes() ;
+			}
+		}
+		return rc ;
+	}
+
+	// Remember the attributes (and so the dictionaries) elements are using
+	private void seen( DataElementAttributes attributes ) {
+		if( attributes != lastAttributes ) {
+			attributesSeen.put( attributes, Boolean.TRUE ) ;
+			lastAttributes = attributes ;
+		}
+	}
+
+	/**
+	 * How many labels are held in the dictionaries of each attribute. Attributes
+	 * from different sources with the same name are added together.
+	 * 
+	 * @see com.rc.datamodel.AttributeValueDictionary
+	 * @return attribute name => number of labels
+	 */
+	public Map<String,Integer> getDictionarySizes() {
+		Map<String,Integer> rc = new TreeMap<>() ;
+		for( DataElementAttributes attributes : attributesInUse() ) {
+			String[] attributeNames = attributes.getAttributeNames() ;
+			for( int i=0 ; i<attributeNames.length ; i++ ) {
+				rc.merge( attributeNames[i], attributes.getDictionary(i).size(), Integer::sum ) ;
+			}
+		}
+		return rc ;
+	}
+
+	/**
+	 * @return a rough estimate of the heap used by the dictionaries of labels
+	 */
+	public long getEstimatedDictionaryBytes() {
+		long rc = 0 ;
+		for( DataElementAttributes attributes : attributesInUse() ) {
+			for( int i=0 ; i<attributes.getAttributeNames().length ; i++ ) {
+				rc += attributes.getDictionary(i).getEstimatedBytes() ;
+			}
+		}
+		return rc ;
+	}
+
+	private List<DataElementAttributes> attributesInUse() {
+		synchronized( attributesSeen ) {
+			return new ArrayList<>( attributesSeen.keySet() ) ;
+		}
+	}
+
+	/**
+	 * @return the heap accounting, e.g. to add other things to it
+	 */
+	public HeapBudget getHeapBudget() {
+		return heapBudget ;
 	}
 	
 	
@@ -272,8 +703,23 @@ public class DataElementStore  implements DataElementProcessor {
 	 * @return A Collection of items representing a single value, An empty collection perhaps? The 1st row is the attribute names
 	 */
 	public Collection<DataDetailMessage> query( String query, String viewName, int limit ) {
+		return query( query, viewName, limit, false ) ;
+	}
 
-		List<DataDetailMessage> rc = new ArrayList<>(limit*2) ;
+	/**
+	 * Return a collection of data points that match the query, optionally
+	 * the ones with the largest absolute values rather than the newest.
+	 * 
+	 * @see #query(String, String, int)
+	 * @param query the query string ( e.g. trade-1\tUSD\tBook6\tNPV\tN/A\t100 )
+	 * @param viewName the name of the view requesting data
+	 * @param limit maximum number of items to return
+	 * @param orderByAbsoluteValue return the largest absolute values, otherwise the newest
+	 * @return A Collection of items representing a single value, The 1st row is the attribute names
+	 */
+	public Collection<DataDetailMessage> query( String query, String viewName, int limit, boolean orderByAbsoluteValue ) {
+
+		List<DataDetailMessage> rc = new ArrayList<>() ;
 
 		DataElementDataView dedv = getDataElementDataView( viewName ) ;
 		if( dedv == null ) {
@@ -282,7 +728,9 @@ public class DataElementStore  implements DataElementProcessor {
 		}
 
 		numberDrillThroughs++ ; // for monitoring activity
-		if( currentElements.isEmpty() ) return rc ;    // not exactly thread safe - but not much else we can do
+		// the generation being served, even if it's replaced part way through
+		final Generation generation = current ;
+		if( generation.elements.size() == 0 ) return rc ;    // not exactly thread safe - but not much else we can do
 
 		//
 		// The filters against which to test each data point
@@ -296,7 +744,7 @@ public class DataElementStore  implements DataElementProcessor {
 		//
 		// Parse the input query into a filter set
 		//
-		String[] elementKeys = query.split( String.valueOf( DataElement.ROW_COL_SEPARATION_CHAR ) ) ;
+		String[] elementKeys = DataElement.splitComponents( query, DataElement.ROW_COL_SEPARATION_CHAR ) ;
         for (String elementKey : elementKeys) {
             int ix = elementKey.indexOf('=');
             if (ix > 0) {
@@ -370,7 +818,8 @@ public class DataElementStore  implements DataElementProcessor {
         Collections.addAll(allKeys, colGroups);
         Collections.addAll(allKeys, rowGroups);
 		logger.info( "Scanning these keys {} to see whether they are synthetic.", allKeys ) ;
-		DataElement de = currentElements.values().iterator().next() ;
+		DataElement de = generation.elements.any() ;
+		if( de == null ) return rc ;
 		DataElementAttributes dae = de.getDataElementAttributes() ;
 		Set<String> notRealAttributes = new HashSet<>() ;
 		for( String requestedAttributeName : allKeys ) {
@@ -386,50 +835,48 @@ public class DataElementStore  implements DataElementProcessor {
 		
 		
 		//
-		// OK now for the large scan of the concurrent hash map
-		// scan for anything that matches our filter. Add matching
-		// elements and keep the ones with the largest values to return.
+		// Use the index to find the elements that could match, only
+		// if there's nothing to look up do we scan the whole cache.
 		//
-		String[] attributeNames = dae.getAttributeNames() ;
-		for( DataElement value : currentElements.values() ) {
-			
-			// If this is older than the oldest in the list forget it
-			// The time applies to the whole element - so we can optimize out a loop
-			boolean decidedToAddToList;
-
-			if( value.matchesCoreKeys( matchingTests ) ) {	
-				for( int i=0 ; i<value.size() ; i++ ) {				
-					if( value.matchesPerimeterKeys(i, matchingTests)) {
-						// 2 reasons to add - either we haven't filled up the list
-						// or the current value is younger than the oldest in the 
-						// current list ( see above part of the test )
-						//
-						// We do 2x for optimization - so we sort less frequently 
-						// If it's faster to sort than add each time this can be changed
-						// i.e. maintain a sorted list ( priority-queue ? )
-						decidedToAddToList = rc.size() < (2*limit) ;		
-						
-						if(decidedToAddToList) {
-							DataDetailMessage ddm = new DataDetailMessage( value, i ) ;
-							rc.add( ddm ) ;
-							// We won't chop the list every time. Keep a bigger list
-							// to reduce sorting. We can clean up at the end
-							if( rc.size() >= (2*limit) ) {
-								Collections.sort( rc ) ;
-								while( rc.size() > limit ) {
-									rc.remove( limit ) ;
-								}
-							}
-						}
+		Set<String> candidateKeys = generation.index.candidates( matchingTests ) ;
+		final Map<String,Set<String>> tests = matchingTests ;
+		final Map<Thread,TopDetails> workerResults = new ConcurrentHashMap<>() ;
+		final Consumer<DataElement> collector = value -> {
+			if( value != null && value.matchesCoreKeys( tests ) ) {
+				TopDetails topDetails = workerResults.computeIfAbsent( Thread.currentThread(), t -> new TopDetails( limit, orderByAbsoluteValue ) ) ;
+				for( int i=0 ; i<value.size() ; i++ ) {
+					if( value.matchesPerimeterKeys(i, tests)) {
+						topDetails.offer( value, i ) ;
 					}
 				}
 			}
+		} ;
+
+		//
+		// OK now for the scan of the candidates (or the whole cache) 
+		// for anything that matches our filter. Each worker thread keeps 
+		// its own best items, which are merged at the end.
+		//
+		if( candidateKeys == null ) {
+			logger.info( "Query checking all {} elements", generation.elements.size() ) ;
+			generation.elements.forEach( QUERY_PARALLELISM_THRESHOLD, collector ) ;
+		} else {
+			logger.info( "Query checking {} of {} elements", candidateKeys.size(), generation.elements.size() ) ;
+			if( candidateKeys.size() > QUERY_PARALLELISM_THRESHOLD ) {
+				candidateKeys.parallelStream().forEach( key -> collector.accept( generation.elements.get( key ) ) ) ;
+			} else {
+				candidateKeys.forEach( key -> collector.accept( generation.elements.get( key ) ) ) ;
+			}
 		}
-		
-		Collections.sort( rc ) ;
+
+		for( TopDetails topDetails : workerResults.values() ) {
+			rc.addAll( topDetails.details ) ;
+		}
+		rc.sort( TopDetails.order( orderByAbsoluteValue ) ) ;
 		while( rc.size() > limit ) {
-			rc.remove( limit ) ;
+			rc.remove( rc.size()-1 ) ;
 		}
+		String[] attributeNames = dae.getAttributeNames() ;
         //
 		// Add in a header row if we found anything.
 		//
@@ -441,13 +888,63 @@ public class DataElementStore  implements DataElementProcessor {
 		return rc ;
 	}
 
+	/**
+	 * The best N details found by one query worker. This is a bounded heap, the 
+	 * head is the worst item kept, so most values can be rejected without
+	 * making a DataDetailMessage at all.
+	 */
+	static final class TopDetails {
+		final int limit ;
+		final boolean byAbsoluteValue ;
+		final PriorityQueue<DataDetailMessage> details ;
+
+		TopDetails( int limit, boolean byAbsoluteValue ) {
+			this.limit = limit ;
+			this.byAbsoluteValue = byAbsoluteValue ;
+			this.details = new PriorityQueue<>( Math.max(1, limit), order( byAbsoluteValue ).reversed() ) ;
+		}
+
+		void offer( DataElement value, int index ) {
+			if( limit <= 0 ) return ;
+			if( details.size() >= limit ) {
+				DataDetailMessage worst = details.peek() ;
+				if( !isBetter( value.getValue(index), value.getCreatedTime(), worst ) ) {
+					return ;
+				}
+				details.poll() ;
+			}
+			details.add( new DataDetailMessage( value, index ) ) ;
+		}
+
+		private boolean isBetter( double value, long createdTime, DataDetailMessage than ) {
+			if( byAbsoluteValue ) {
+				int rc = Double.compare( Math.abs(value), Math.abs(than.value) ) ;
+				if( rc != 0 ) return rc > 0 ;
+			}
+			return createdTime > than.createdTime ;
+		}
+
+		/**
+		 * The order of the results, best first
+		 */
+		static Comparator<DataDetailMessage> order( boolean byAbsoluteValue ) {
+			return byAbsoluteValue ? DataDetailMessage.LARGEST_FIRST : DataDetailMessage.NEWEST_FIRST ;
+		}
+	}
+
 	/**
 	 * Useful for debugging ...
 	 * 
 	 */
 	public String toString() {
-		return "Data Store containing " + currentElements.size() + 
+		Generation loading = shadow ;
+		return "Data Store containing " + current.elements.size() + 
 		" elements\nBatch is " + (serverBatchComplete? "complete.\n" : "processing.\n") +
-		numberDrillThroughs + " drillthroughs requested\nServer started " + startedAt ; 
+		( loading==null ? "" : "New batch has " + loading.elements.size() + " elements so far\n" ) +
+		numberDrillThroughs + " drillthroughs requested\nServer started " + startedAt + 
+		"\n" + numStale.sum() + " stale or duplicate elements dropped" +
+		"\n" + numUnchanged.sum() + " unchanged replacements not sent to views" +
+		"\n" + current.elements +
+		( expiry==null ? "" : "\n" + expiry ) ; 
 	}
 }
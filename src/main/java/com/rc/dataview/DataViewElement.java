@@ -55,11 +55,21 @@ public class DataViewElement {
 	}
 
 	
-	public void set( double value ) {
-		if( Math.abs(this.value - value) > 1e-8 ) {
+	/**
+	 * Replace the value of the cell. The cell is marked as updated,
+	 * and used again, only if the value changes (or it was unused).
+	 * 
+	 * @param value
+	 * @return true if the cell is marked updated
+	 */
+	public boolean set( double value ) {
+		if( unused || Math.abs(this.value - value) > 1e-8 ) {
 			this.updated = true;
+			this.unused = false ;
 			this.value = value;
+			return true ;
 		}
+		return false ;
 	}
 	
 	public double getValue() {
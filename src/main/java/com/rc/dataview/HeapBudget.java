@@ -0,0 +1,173 @@
+package com.rc.dataview;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a running estimate of the heap used by the store, each view and
+ * anything else registered (e.g. client message queues), and decides whether
+ * ingest can carry on as normal.
+ *
+ * Past 90% of the budget ingest is slowed down, past the budget elements with
+ * new keys are rejected (replacements of existing keys are still accepted).
+ * Without a budget the estimates are kept but nothing is ever slowed or rejected.
+ *
+ * The estimates are refreshed every second, ingest only reads the result.
+ *
+ * @author richard
+ */
+public class HeapBudget implements AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger( HeapBudget.class ) ;
+
+	public enum State { OK, THROTTLE, REJECT }
+
+	private final static long REFRESH_MILLIS = 1_000 ;
+	private final static double THROTTLE_FRACTION = 0.9 ;
+
+	private final DataElementStore dataElementStore ;
+	private final long budgetBytes ;							// 0 if unlimited
+	private final Map<String,LongSupplier> sources ;			// other estimates e.g. client queues
+	private final AtomicLong numRejected ;
+	private final AtomicLong numThrottled ;
+	private volatile State state ;
+	private volatile Map<String,Long> lastEstimates ;			// name => bytes, for the monitor
+	private volatile Map<String,Integer> lastDictionarySizes ;	// attribute name => labels, for the monitor
+	private volatile long lastTotal ;
+	private ScheduledExecutorService scheduler ;
+
+	/**
+	 * @param dataElementStore the store, and its views, to account for
+	 * @param budgetBytes the most heap to use (estimated), 0 for no limit
+	 */
+	HeapBudget( DataElementStore dataElementStore, long budgetBytes ) {
+		this.dataElementStore = dataElementStore ;
+		this.budgetBytes = budgetBytes ;
+		this.sources = new ConcurrentHashMap<>() ;
+		this.numRejected = new AtomicLong() ;
+		this.numThrottled = new AtomicLong() ;
+		this.state = State.OK ;
+		this.lastEstimates = new LinkedHashMap<>() ;
+		this.lastDictionarySizes = new LinkedHashMap<>() ;
+	}
+
+	/**
+	 * Refresh the estimates every second, until closed
+	 */
+	synchronized void start() {
+		if( scheduler == null ) {
+			scheduler = Executors.newSingleThreadScheduledExecutor( r -> {
+				Thread t = new Thread( r, "Heap budget" ) ;
+				t.setDaemon( true ) ;
+				return t ;
+			} ) ;
+			scheduler.scheduleWithFixedDelay( () -> {
+				try {
+					refresh() ;
+				} catch( Throwable t ) {
+					logger.error( "Failed to estimate heap use", t ) ;
+				}
+			}, REFRESH_MILLIS, REFRESH_MILLIS, TimeUnit.MILLISECONDS ) ;
+		}
+	}
+
+	public synchronized void close() {
+		if( scheduler != null ) {
+			scheduler.shutdownNow() ;
+			scheduler = null ;
+		}
+	}
+
+	/**
+	 * Add something else to account for
+	 *
+	 * @param name shown on the monitor
+	 * @param estimatedBytes returns the current estimate
+	 */
+	public void addSource( String name, LongSupplier estimatedBytes ) {
+		sources.put( name, estimatedBytes ) ;
+	}
+
+	/**
+	 * @return whether ingest should carry on, slow down or reject new keys
+	 */
+	public State getState() {
+		return state ;
+	}
+
+	void rejected( int count ) {
+		numRejected.addAndGet( count ) ;
+	}
+
+	void throttled() {
+		numThrottled.incrementAndGet() ;
+	}
+
+	/**
+	 * Work out the estimates now, and the state that follows
+	 */
+	void refresh() {
+		Map<String,Long> estimates = new LinkedHashMap<>() ;
+		estimates.put( "store", dataElementStore.getEstimatedBytes() ) ;
+		estimates.put( "dictionaries", dataElementStore.getEstimatedDictionaryBytes() ) ;
+		for( String viewName : dataElementStore.getDataViewNames() ) {
+			DataElementDataView dedv = dataElementStore.getDataElementDataView( viewName ) ;
+			if( dedv != null ) {
+				estimates.put( "view " + viewName, dedv.getEstimatedBytes() ) ;
+			}
+		}
+		for( var entry : sources.entrySet() ) {
+			estimates.put( entry.getKey(), entry.getValue().getAsLong() ) ;
+		}
+		long total = 0 ;
+		for( long bytes : estimates.values() ) {
+			total += bytes ;
+		}
+		State newState = State.OK ;
+		if( budgetBytes > 0 ) {
+			if( total > budgetBytes ) {
+				newState = State.REJECT ;
+			} else if( total > budgetBytes * THROTTLE_FRACTION ) {
+				newState = State.THROTTLE ;
+			}
+		}
+		if( newState != state ) {
+			logger.warn( "Estimated heap use {}Mb of {}Mb budget, ingest is now {}", total/0x100000, budgetBytes/0x100000, newState ) ;
+		}
+		lastEstimates = estimates ;
+		lastDictionarySizes = dataElementStore.getDictionarySizes() ;
+		lastTotal = total ;
+		state = newState ;
+	}
+
+	public String toString() {
+		StringBuilder rc = new StringBuilder( "Estimated heap use " ).append( lastTotal/0x100000 ).append( "Mb" ) ;
+		if( budgetBytes > 0 ) {
+			rc.append( " of " ).append( budgetBytes/0x100000 ).append( "Mb budget" ) ;
+		} else {
+			rc.append( ", no budget" ) ;
+		}
+		rc.append( ", ingest " ).append( state ) ;
+		rc.append( "\n" ).append( numThrottled.get() ).append( " ingest calls slowed, " ).append( numRejected.get() ).append( " new keys rejected" ) ;
+		for( var entry : lastEstimates.entrySet() ) {
+			rc.append( "\n  " ).append( entry.getKey() ).append( ": " ).append( entry.getValue()/1024 ).append( "Kb" ) ;
+		}
+		rc.append( "\nDictionary labels" ) ;
+		for( var entry : lastDictionarySizes.entrySet() ) {
+			rc.append( "\n  " ).append( entry.getKey() ).append( ": " ).append( entry.getValue() ) ;
+		}
+		Runtime runtime = Runtime.getRuntime() ;
+		rc.append( "\nJVM heap used " ).append( (runtime.totalMemory()-runtime.freeMemory())/0x100000 )
+			.append( "Mb of " ).append( runtime.maxMemory()/0x100000 ).append( "Mb" ) ;
+		return rc.toString() ;
+	}
+}
@@ -0,0 +1,217 @@
+package com.rc.dataview;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rc.agg.DataElementProcessor;
+import com.rc.datamodel.DataElement;
+
+/**
+ * This spreads the ingest of data elements across a number of threads (shards).
+ * Each invariant key always goes to the same shard, and each shard has one thread
+ * working through its elements in the order they arrived. So updates to one key
+ * are always processed in order, while different keys are processed in parallel.
+ *
+ * Without this, a replacement of a key by two producer threads at once could
+ * interleave the previous/replacement handling in the store.
+ *
+ * Producers are held up (not rejected) if a shard gets too far behind.
+ *
+ * Processing is asynchronous, call flush() to wait for everything sent so
+ * far to be in the store. The batch methods do that before passing on the call.
+ *
+ * @author richard
+ * @see DataElementStore
+ */
+public class ShardedDataElementStore implements DataElementProcessor, AutoCloseable {
+
+	final static Logger logger = LoggerFactory.getLogger( ShardedDataElementStore.class ) ;
+
+	private static final int DEFAULT_QUEUE_SIZE = 1_000 ;
+
+	private final DataElementStore dataElementStore ;
+	private final ThreadPoolExecutor[] shards ;
+
+	/**
+	 * Create the shards, and start their threads
+	 *
+	 * @param dataElementStore where the elements end up
+	 * @param numShards how many threads to use
+	 */
+	public ShardedDataElementStore( DataElementStore dataElementStore, int numShards ) {
+		this( dataElementStore, numShards, DEFAULT_QUEUE_SIZE ) ;
+	}
+
+	/**
+	 * Create the shards, and start their threads
+	 *
+	 * @param dataElementStore where the elements end up
+	 * @param numShards how many threads to use
+	 * @param queueSize how many elements can wait in each shard before producers are held up
+	 */
+	public ShardedDataElementStore( DataElementStore dataElementStore, int numShards, int queueSize ) {
+		if( numShards < 1 ) {
+			throw new IllegalArgumentException( "There must be at least one shard, not " + numShards ) ;
+		}
+		this.dataElementStore = dataElementStore ;
+		this.shards = new ThreadPoolExecutor[ numShards ] ;
+		for( int i=0 ; i<numShards ; i++ ) {
+			final String threadName = "Ingest shard " + i ;
+			shards[i] = new ThreadPoolExecutor( 1, 1, 0L, TimeUnit.MILLISECONDS,
+									new ArrayBlockingQueue<>( queueSize ),
+									r -> new Thread( r, threadName ),
+									ShardedDataElementStore::waitForSpace ) ;
+		}
+		logger.info( "Started {} ingest shards", numShards ) ;
+	}
+
+	// A full shard holds up the producer, until there's space in the queue
+	private static void waitForSpace( Runnable task, ThreadPoolExecutor executor ) {
+		if( executor.isShutdown() ) {
+			throw new RejectedExecutionException( "Ingest shard is shut down" ) ;
+		}
+		try {
+			executor.getQueue().put( task ) ;
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+			throw new RejectedExecutionException( "Interrupted waiting for an ingest shard", e ) ;
+		}
+	}
+
+	/**
+	 * Queue an element on its shard. The element is in the store
+	 * some time later, after flush() returns at the latest.
+	 *
+	 */
+	@Override
+	public void process( DataElement dataElement ) {
+		shards[ shardOf( dataElement.getInvariantKey() ) ].execute( () -> {
+			try {
+				dataElementStore.process( dataElement ) ;
+			} catch( Throwable t ) {
+				logger.error( "Failed to process {}", dataElement.getInvariantKey(), t ) ;
+			}
+		} ) ;
+	}
+
+	/**
+	 * Split a batch of elements by shard, each shard gets its part
+	 * as one task. The order of elements within a shard is kept.
+	 *
+	 */
+	@Override
+	public void processAll( Collection<DataElement> dataElements ) {
+		List<List<DataElement>> perShard = new ArrayList<>( shards.length ) ;
+		for( int i=0 ; i<shards.length ; i++ ) {
+			perShard.add( new ArrayList<>( dataElements.size() / shards.length + 1 ) ) ;
+		}
+		for( DataElement dataElement : dataElements ) {
+			perShard.get( shardOf( dataElement.getInvariantKey() ) ).add( dataElement ) ;
+		}
+		for( int i=0 ; i<shards.length ; i++ ) {
+			final List<DataElement> batch = perShard.get( i ) ;
+			if( batch.isEmpty() ) continue ;
+			shards[i].execute( () -> {
+				try {
+					dataElementStore.processAll( batch ) ;
+				} catch( Throwable t ) {
+					logger.error( "Failed to process a batch of {} elements", batch.size(), t ) ;
+				}
+			} ) ;
+		}
+	}
+
+	/**
+	 * Wait until all the elements already queued have been processed
+	 *
+	 */
+	public void flush() {
+		Future<?>[] markers = new Future<?>[ shards.length ] ;
+		for( int i=0 ; i<shards.length ; i++ ) {
+			markers[i] = shards[i].submit( () -> {} ) ;
+		}
+		try {
+			for( Future<?> marker : markers ) {
+				marker.get() ;
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		} catch( ExecutionException e ) {
+			throw new RuntimeException( e ) ;
+		}
+	}
+
+	/**
+	 * Finish anything queued, then start a new batch in the store
+	 *
+	 * @see DataElementStore#startBatch(boolean)
+	 */
+	public void startBatch( boolean deleteContents ) {
+		flush() ;
+		dataElementStore.startBatch( deleteContents ) ;
+	}
+
+	/**
+	 * Finish anything queued, then end the batch in the store
+	 *
+	 * @see DataElementStore#endBatch()
+	 */
+	public void endBatch() {
+		flush() ;
+		dataElementStore.endBatch() ;
+	}
+
+	public int getNumShards() {
+		return shards.length ;
+	}
+
+	/**
+	 * Which shard processes an invariant key. The hash is spread so
+	 * keys with similar hashes still land on different shards.
+	 *
+	 * @param invariantKey
+	 * @return the shard index
+	 */
+	public int shardOf( String invariantKey ) {
+		int h = invariantKey.hashCode() ;
+		h ^= h >>> 16 ;
+		return Math.floorMod( h, shards.length ) ;
+	}
+
+	/**
+	 * Process anything queued and stop the shard threads
+	 */
+	public void close() {
+		for( ThreadPoolExecutor shard : shards ) {
+			shard.shutdown() ;
+		}
+		try {
+			for( ThreadPoolExecutor shard : shards ) {
+				if( !shard.awaitTermination( 1, TimeUnit.MINUTES ) ) {
+					logger.warn( "Ingest shard didn't finish, {} elements dropped", shard.getQueue().size() ) ;
+					shard.shutdownNow() ;
+				}
+			}
+		} catch( InterruptedException e ) {
+			Thread.currentThread().interrupt() ;
+		}
+	}
+
+	public String toString() {
+		StringBuilder rc = new StringBuilder( "Ingest shards queued:" ) ;
+		for( ThreadPoolExecutor shard : shards ) {
+			rc.append( ' ' ).append( shard.getQueue().size() ) ;
+		}
+		return rc.toString() ;
+	}
+}
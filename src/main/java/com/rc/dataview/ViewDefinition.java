@@ -3,6 +3,7 @@ package com.rc.dataview;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Objects;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -133,6 +134,28 @@ public class ViewDefinition {
         currentMap.put( attributeValue, whenAttributeValue ) ;
  	}
 	
+	/**
+	 * Does another definition describe exactly the same view as this one? Used
+	 * when the definitions are reloaded, a view that hasn't changed can be kept.
+	 * (equals only compares the name)
+	 * 
+	 * @param other the definition to compare with
+	 * @return true if every part of the definition matches
+	 */
+	public boolean isSameDefinition( ViewDefinition other ) {
+		return other != null &&
+				name.equals( other.name ) &&
+				Objects.equals( description, other.description ) &&
+				getImplementingClass() == other.getImplementingClass() &&
+				Objects.equals( constructorArg, other.constructorArg ) &&
+				Arrays.equals( colGroups, other.colGroups ) &&
+				Arrays.equals( rowGroups, other.rowGroups ) &&
+				Arrays.equals( hiddenAttributes, other.hiddenAttributes ) &&
+				Arrays.equals( totalAttributes, other.totalAttributes ) &&
+				filters.equals( other.filters ) &&
+				setValues.equals( other.setValues ) ;
+	}
+
 	public boolean equals( Object o ) {
 		return o instanceof ViewDefinition && ((ViewDefinition)o).name.equals( name ) ;
 	}
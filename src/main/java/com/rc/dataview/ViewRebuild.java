@@ -0,0 +1,307 @@
+package com.rc.dataview;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.IntStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementMap;
+
+/**
+ * Fills new (or changed) views from the store on a background thread, while
+ * elements keep arriving. The views aren't visible to clients until they're
+ * full, then the store swaps them all in at once.
+ *
+ * Each key is sent to the new views once, either by the scan of the store or
+ * by a live update, whichever gets there first. The version sent is remembered,
+ * so a later update sends only the difference from it. That way an element
+ * updated part way through the scan is never counted twice, or missed.
+ * A key removed (e.g. expired) before the scan reaches it is marked as removed,
+ * so the scan can't add an element the store no longer holds.
+ *
+ * The scan doesn't go through the views' queues. It's split across the
+ * fork-join pool, each thread aggregating into its own partial cells for each
+ * view, and the partial cells are merged into the views at the end. Live
+ * updates are held back until the merge is done, then queued on the views.
+ * A view class with its own process( DataElement ) has each scanned element
+ * passed to that instead of aggregated into partial cells.
+ *
+ * @author richard
+ */
+class ViewRebuild implements Runnable {
+
+	final static Logger logger = LoggerFactory.getLogger( ViewRebuild.class ) ;
+
+	// in sent: the key was removed, the scan mustn't send it
+	private static final DataElement REMOVED = new DataElement( 0, new DataElementAttributes( new String[0], 0 ), new String[0], "" ) ;
+
+	private final DataElementStore dataElementStore ;
+	private final DataElementMap currentElements ;
+	private final long parallelismThreshold ;
+	private final Collection<DataElementDataView> pendingViews ;
+	private final Set<DataElementDataView> pendingViewSet ;		// identity, for fast checks
+	private final Map<String,DataElementDataView> futureAvailableViews ;
+	private final ConcurrentHashMap<String,DataElement> sent ;		// the version sent to the new views (or REMOVED), by key
+	private final AtomicLong numScanned ;
+	private final long numToScan ;
+	private final long startedAt ;
+	private final Queue<List<DataElement>> heldUpdates ;	// live updates waiting for the merge
+	private final ReadWriteLock liveLock ;
+	private boolean live ;		// send updates straight to the views? guarded by liveLock
+	private volatile boolean merging ;
+	private volatile boolean cancelled ;
+	private Thread thread ;
+
+	/**
+	 * @param dataElementStore told when the views are ready
+	 * @param currentElements the elements to send to the views
+	 * @param parallelismThreshold scan in parallel if there are more elements than this
+	 * @param pendingViews the new views to fill
+	 * @param futureAvailableViews all the views to use when this is done
+	 */
+	ViewRebuild( DataElementStore dataElementStore, DataElementMap currentElements, long parallelismThreshold,
+			Collection<DataElementDataView> pendingViews, Map<String,DataElementDataView> futureAvailableViews ) {
+		this.dataElementStore = dataElementStore ;
+		this.currentElements = currentElements ;
+		this.parallelismThreshold = parallelismThreshold ;
+		this.pendingViews = pendingViews ;
+		this.pendingViewSet = Collections.newSetFromMap( new IdentityHashMap<>() ) ;
+		this.pendingViewSet.addAll( pendingViews ) ;
+		this.futureAvailableViews = futureAvailableViews ;
+		this.sent = new ConcurrentHashMap<>( currentElements.size()+16 ) ;
+		this.numScanned = new AtomicLong() ;
+		this.numToScan = currentElements.size() ;
+		this.startedAt = System.currentTimeMillis() ;
+		this.heldUpdates = new ConcurrentLinkedQueue<>() ;
+		this.liveLock = new ReentrantReadWriteLock() ;
+		this.live = false ;
+	}
+
+	/**
+	 * Start the scan on its own thread
+	 */
+	void start() {
+		thread = new Thread( this, "View rebuild" ) ;
+		thread.start() ;
+	}
+
+	/**
+	 * Stop the scan, and wait for the thread to finish. The pending views
+	 * are left as they are, updates held back are dropped and any more
+	 * go straight to the views. Don't call this holding the store's viewLock.
+	 */
+	void cancel() {
+		cancelled = true ;
+		if( thread != null && thread != Thread.currentThread() ) {
+			try {
+				thread.join() ;
+			} catch( InterruptedException e ) {
+				Thread.currentThread().interrupt() ;
+			}
+		}
+		liveLock.writeLock().lock() ;
+		try {
+			live = true ;
+			heldUpdates.clear() ;
+		} finally {
+			liveLock.writeLock().unlock() ;
+		}
+	}
+
+	boolean isCancelled() {
+		return cancelled ;
+	}
+
+	/**
+	 * @param dedv a view
+	 * @return true if the view is being filled here (so isn't live yet)
+	 */
+	boolean isPending( DataElementDataView dedv ) {
+		return pendingViewSet.contains( dedv ) ;
+	}
+
+	Collection<DataElementDataView> getPendingViews() {
+		return pendingViews ;
+	}
+
+	Map<String,DataElementDataView> getFutureAvailableViews() {
+		return futureAvailableViews ;
+	}
+
+	/**
+	 * Called by the store after saving an element. Never called
+	 * concurrently for the same key.
+	 *
+	 * @param current the element just saved
+	 */
+	void update( DataElement current ) {
+		DataElement previouslySent = unlessRemoved( sent.put( current.getInvariantKey(), current ) ) ;
+		List<DataElement> toSend = new ArrayList<>( 2 ) ;
+		DataElementStore.addChanges( toSend, previouslySent, current ) ;
+		send( toSend ) ;
+	}
+
+	/**
+	 * As update, for a batch of elements
+	 *
+	 * @param dataElements the elements just saved, in order
+	 */
+	void updateAll( Collection<DataElement> dataElements ) {
+		List<DataElement> toSend = new ArrayList<>( dataElements.size() ) ;
+		for( DataElement current : dataElements ) {
+			DataElement previouslySent = unlessRemoved( sent.put( current.getInvariantKey(), current ) ) ;
+			DataElementStore.addChanges( toSend, previouslySent, current ) ;
+		}
+		send( toSend ) ;
+	}
+
+	/**
+	 * Called by the store after removing an element, takes the version
+	 * sent out of the new views. The key is marked as removed, in case the
+	 * scan has read the element but not sent it yet.
+	 *
+	 * @param removed the element removed
+	 */
+	void remove( DataElement removed ) {
+		DataElement previouslySent = unlessRemoved( sent.put( removed.getInvariantKey(), REMOVED ) ) ;
+		if( previouslySent != null ) {
+			send( List.of( previouslySent.negatedCopy() ) ) ;
+		}
+	}
+
+	private static DataElement unlessRemoved( DataElement dataElement ) {
+		return dataElement==REMOVED ? null : dataElement ;
+	}
+
+	@Override
+	public void run() {
+		logger.info( "Rebuilding {} views from {} elements", pendingViews.size(), numToScan ) ;
+		final DataElementDataView[] views = pendingViews.toArray( new DataElementDataView[0] ) ;
+		final Map<Thread,PartialCells> partials = new ConcurrentHashMap<>() ;
+		try {
+			currentElements.forEach( parallelismThreshold, dataElement -> {
+				if( cancelled ) {
+					throw new CancellationException() ;
+				}
+				if( sent.putIfAbsent( dataElement.getInvariantKey(), dataElement ) == null ) {
+					PartialCells partial = partials.computeIfAbsent( Thread.currentThread(), t -> new PartialCells( views.length ) ) ;
+					partial.aggregate( views, dataElement ) ;
+				}
+				numScanned.incrementAndGet() ;
+			} ) ;
+			// each view is merged on one thread, its cells can't be added to concurrently
+			merging = true ;
+			IntStream.range( 0, views.length ).parallel().forEach( v -> {
+				for( PartialCells partial : partials.values() ) {
+					views[v].merge( partial.cells.get( v ) ) ;
+				}
+			} ) ;
+		} catch( CancellationException e ) {
+			logger.info( "View rebuild cancelled after {} elements", numScanned.get() ) ;
+			return ;
+		} catch( Throwable t ) {
+			logger.error( "View rebuild failed, views are used as they are", t ) ;
+		}
+		goLive() ;
+		logger.info( "Rebuilt {} views from {} elements in {} mS, using {} threads", 
+				views.length, numScanned.get(), System.currentTimeMillis()-startedAt, partials.size() ) ;
+		dataElementStore.finishRebuild( this ) ;
+	}
+
+	// Hold back updates until the views are merged, then queue them on the views
+	private void send( List<DataElement> toSend ) {
+		if( toSend.isEmpty() ) {
+			return ;
+		}
+		liveLock.readLock().lock() ;
+		try {
+			if( !live ) {
+				heldUpdates.add( toSend ) ;
+				return ;
+			}
+		} finally {
+			liveLock.readLock().unlock() ;
+		}
+		for( DataElementDataView dedv : pendingViews ) {
+			dedv.processAll( toSend ) ;
+		}
+	}
+
+	// Send all the held back updates to the views, any more updates go straight there
+	private void goLive() {
+		liveLock.writeLock().lock() ;
+		try {
+			live = true ;
+		} finally {
+			liveLock.writeLock().unlock() ;
+		}
+		// the scan is over, removed keys needn't be remembered
+		sent.values().removeIf( dataElement -> dataElement==REMOVED ) ;
+		// nothing is added to heldUpdates now
+		for( List<DataElement> toSend : heldUpdates ) {
+			for( DataElementDataView dedv : pendingViews ) {
+				dedv.processAll( toSend ) ;
+			}
+		}
+		heldUpdates.clear() ;
+	}
+
+	// The cells aggregated by one scanning thread, one set per view
+	private static final class PartialCells {
+		final List<Map<String,DataViewElement>> cells ;
+		final StringBuilder colKeyPiece = new StringBuilder( 256 ) ;
+		final StringBuilder elementKey = new StringBuilder( 256 ) ;
+
+		PartialCells( int numViews ) {
+			cells = new ArrayList<>( numViews ) ;
+			for( int v=0 ; v<numViews ; v++ ) {
+				cells.add( new HashMap<>() ) ;
+			}
+		}
+
+		void aggregate( DataElementDataView[] views, DataElement dataElement ) {
+			for( int v=0 ; v<views.length ; v++ ) {
+				if( views[v].isProcessOverridden() ) {
+					views[v].process( dataElement ) ;
+				} else {
+					views[v].aggregateInto( dataElement, cells.get( v ), colKeyPiece, elementKey ) ;
+				}
+			}
+		}
+	}
+
+	public String toString() {
+		StringBuilder rc = new StringBuilder( "Rebuilding" ) ;
+		for( DataElementDataView dedv : pendingViews ) {
+			rc.append( ' ' ).append( dedv.getViewName() ) ;
+		}
+		long done = numScanned.get() ;
+		if( merging ) {
+			rc.append( ": merging partial results" ) ;
+		} else {
+			rc.append( ": " ).append( done ).append( " of " ).append( numToScan ).append( " elements" ) ;
+			if( numToScan > 0 ) {
+				rc.append( " (" ).append( Math.min( 100, done * 100 / numToScan ) ).append( "%)" ) ;
+			}
+		}
+		rc.append( ", " ).append( (System.currentTimeMillis()-startedAt)/1000 ).append( "s" ) ;
+		return rc.toString() ;
+	}
+}
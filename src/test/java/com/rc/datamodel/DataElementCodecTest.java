@@ -0,0 +1,82 @@
+package com.rc.datamodel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Elements written by a DataElementCodec.Writer must read back the same.
+ *
+ * @author richard
+ */
+public class DataElementCodecTest {
+
+	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "METRIC", "CCY" } ;
+
+	@Test
+	public void schemasWithTheSameIdAreNotMixedUp() {
+		// the schema id is the name hash, it ignores the number of core attributes
+		DataElementAttributes oneCore = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElementAttributes twoCore = new DataElementAttributes( ATTRIBUTE_NAMES, 2 ) ;
+		assertEquals( oneCore.getAttributeNameHash(), twoCore.getAttributeNameHash() ) ;
+
+		DataElement first = new DataElementBuilder( oneCore ).invariantKey( "T1" ).core( 0, "T1" ).add( 1, "IR01", "USD" ).build() ;
+		DataElement second = new DataElementBuilder( twoCore ).invariantKey( "T2" ).core( "T2", "PV" ).add( 2, "EUR" ).build() ;
+
+		ByteBuffer buffer = ByteBuffer.allocate( 1024 ) ;
+		DataElementCodec.Writer writer = new DataElementCodec.Writer() ;
+		writer.write( buffer, first ) ;
+		writer.write( buffer, second ) ;
+		writer.write( buffer, first ) ;
+		buffer.flip() ;
+
+		DataElementCodec.Reader reader = new DataElementCodec.Reader() ;
+		for( DataElement expected : new DataElement[] { first, second, first } ) {
+			DataElement actual = reader.read( buffer ) ;
+			int numCore = expected.getDataElementAttributes().getNumCoreAttributes() ;
+			assertEquals( numCore, actual.getDataElementAttributes().getNumCoreAttributes() ) ;
+			for( String attributeName : ATTRIBUTE_NAMES ) {
+				assertEquals( attributeName, expected.getAttribute( 0, attributeName ), actual.getAttribute( 0, attributeName ) ) ;
+			}
+			assertEquals( expected.getValue( 0 ), actual.getValue( 0 ), 0.0 ) ;
+		}
+	}
+
+	@Test
+	public void onlyTheLabelsAnElementUsesAreWritten() {
+		DataElementAttributes attributes = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElementBuilder builder = new DataElementBuilder( attributes ) ;
+		DataElement usd = builder.invariantKey( "T1" ).core( 0, "T1" ).add( 1, "IR01", "USD" ).build() ;
+		for( int i=0 ; i<1000 ; i++ ) {
+			builder.invariantKey( "X" + i ).core( 0, "X" + i ).add( 1, "IR01", "CCY" + i ).build() ;
+		}
+		DataElement gbp = builder.invariantKey( "T2" ).core( 0, "T2" ).add( 2, "IR01", "GBP" ).build() ;
+
+		ByteBuffer buffer = ByteBuffer.allocate( 1024 ) ;
+		DataElementCodec.Writer writer = new DataElementCodec.Writer() ;
+		writer.write( buffer, usd ) ;
+		int start = buffer.position() ;
+		writer.write( buffer, gbp ) ;
+		assertTrue( "unused labels were written", buffer.position() - start < 64 ) ;
+
+		// a buffer too small leaves nothing behind, the element goes in the next one
+		ByteBuffer tooSmall = ByteBuffer.allocate( 12 ) ;
+		DataElement eur = builder.invariantKey( "T3" ).core( 0, "T3" ).add( 3, "IR01", "EUR" ).build() ;
+		assertFalse( writer.write( tooSmall, eur ) ) ;
+		assertTrue( writer.write( buffer, eur ) ) ;
+		buffer.flip() ;
+
+		// and elements read back into other attributes still have their labels
+		DataElementCodec.Reader reader = new DataElementCodec.Reader() ;
+		for( DataElement expected : new DataElement[] { usd, gbp, eur } ) {
+			DataElement actual = reader.read( buffer ) ;
+			assertEquals( expected.getInvariantKey(), actual.getInvariantKey() ) ;
+			assertEquals( expected.getAttribute( 0, "CCY" ), actual.getAttribute( 0, "CCY" ) ) ;
+			assertEquals( expected.getAttribute( 0, "METRIC" ), actual.getAttribute( 0, "METRIC" ) ) ;
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package com.rc.datamodel;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+/**
+ * filteredClone changes the attribute it's asked to, and only
+ * perimeter attributes can be changed.
+ *
+ * @author richard
+ */
+public class DataElementTest {
+
+	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "METRIC", "WEIGHT" } ;
+
+	@Test
+	public void filteredCloneChangesTheNamedAttribute() {
+		DataElementAttributes attributes = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElement dataElement = new DataElementBuilder( attributes ).invariantKey( "6743" ).core( 0, "6743" )
+				.add( 55, "PV", "170" ).add( 170, "PV", "150" ).build() ;
+
+		DataElement clone = dataElement.filteredClone( "6743-size", "WEIGHT", "170", "XL" ) ;
+
+		assertEquals( 1, clone.size() ) ;
+		assertEquals( "XL", clone.getAttribute( 0, "WEIGHT" ) ) ;
+		assertEquals( "PV", clone.getAttribute( 0, "METRIC" ) ) ;
+		assertEquals( 55.0, clone.getValue( 0 ), 0.0 ) ;
+	}
+
+	@Test( expected = IllegalArgumentException.class )
+	public void filteredCloneOfACoreAttributeIsRejected() {
+		DataElementAttributes attributes = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElement dataElement = new DataElementBuilder( attributes ).invariantKey( "6743" ).core( 0, "6743" )
+				.add( 55, "PV", "170" ).build() ;
+
+		dataElement.filteredClone( "6743-size", "TRADEID", "6743", "XL" ) ;
+	}
+}
@@ -0,0 +1,62 @@
+package com.rc.datamodel;
+
+import java.util.Random;
+
+/**
+ * A simple timing of DataElement.subtract, for elements with the values
+ * in a different order (so the hash matching is used). The time per value
+ * should stay about the same as the element size grows.
+ *
+ * Run it from the command line, the optional arg is the max number of values
+ * per element (default 10,000)
+ *
+ * @author richard
+ *
+ */
+public class SubtractBenchmark {
+
+	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "BOOK", "METRIC", "TENOR", "CCY" } ;
+	private final static int NUM_CORE_ATTRIBUTES = 2 ;
+	private final static int REPEATS = 50 ;
+
+	public static void main(String[] args) {
+		int maxSize = args.length>0 ? Integer.parseInt( args[0] ) : 10_000 ;
+		DataElementAttributes dae = new DataElementAttributes(ATTRIBUTE_NAMES, NUM_CORE_ATTRIBUTES) ;
+		Random random = new Random( 100 ) ;
+
+		// warm up the JIT
+		for( int i=0 ; i<20 ; i++ ) {
+			time( dae, random, 1_000 ) ;
+		}
+		System.out.println( "values\tmS/subtract\tnS/value" ) ;
+		for( int size=10 ; size<=maxSize ; size*=10 ) {
+			double millis = time( dae, random, size ) ;
+			System.out.printf( "%d\t%.3f\t%.1f%n", size, millis, millis * 1e6 / size ) ;
+		}
+	}
+
+	private static double time( DataElementAttributes dae, Random random, int size ) {
+		DataElement a = create( dae, random, size, false ) ;
+		DataElement b = create( dae, random, size, true ) ;
+		long start = System.nanoTime() ;
+		int check = 0 ;
+		for( int i=0 ; i<REPEATS ; i++ ) {
+			check += a.subtract( b ).size() ;
+		}
+		long elapsed = System.nanoTime() - start ;
+		if( check != REPEATS * size ) {
+			throw new Error( "Subtract gave " + check/REPEATS + " values, expected " + size ) ;
+		}
+		return elapsed / 1e6 / REPEATS ;
+	}
+
+	// Each value gets unique labels, optionally in reverse order
+	private static DataElement create( DataElementAttributes dae, Random random, int size, boolean reversed ) {
+		DataElement de = new DataElement( size, dae, new String[] { "T1", "Alpha" }, "T1" ) ;
+		for( int i=0 ; i<size ; i++ ) {
+			int n = reversed ? size-i-1 : i ;
+			de.set( i, new String[] { "IR01", "T" + (n % 1000), "CCY" + (n / 1000) }, random.nextDouble() ) ;
+		}
+		return de ;
+	}
+}
@@ -0,0 +1,50 @@
+package com.rc.dataview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementBuilder;
+import com.rc.datamodel.HeapDataElementMap;
+
+/**
+ * A view filter on a label no element has yet must not add the label
+ * to the dictionaries, and must match once an element has it.
+ *
+ * @author richard
+ */
+public class ViewFilterTest {
+
+	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "METRIC", "CCY" } ;
+
+	@Test
+	public void filterOnAnUnseenLabelMatchesOnceItArrives() {
+		DataElementAttributes attributes = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElementBuilder builder = new DataElementBuilder( attributes ) ;
+
+		ViewDefinition viewDefinition = new ViewDefinition( "F" ) ;
+		viewDefinition.addColGroup( "CCY" ) ;
+		viewDefinition.addRowGroup( "METRIC" ) ;
+		viewDefinition.addFilter( "CCY", "GBP" ) ;
+		DataElementDataView view = DataElementDataView.create( DataElementStore.getInstance(), viewDefinition ) ;
+
+		HeapDataElementMap elements = new HeapDataElementMap( 16 ) ;
+		elements.put( builder.invariantKey( "T1" ).core( 0, "T1" ).add( 5, "IR01", "USD" ).build() ) ;
+		new ViewRebuild( DataElementStore.getInstance(), elements, Long.MAX_VALUE, List.of( view ), Map.of( "F", view ) ).run() ;
+
+		assertEquals( "filter label was added to the dictionary", 1, attributes.getDictionary( 2 ).size() ) ;
+		assertNull( view.getCell( "USD" + DataElement.ROW_COL_SEPARATION_CHAR + "IR01" ) ) ;
+
+		elements.put( builder.invariantKey( "T2" ).core( 0, "T2" ).add( 7, "IR01", "GBP" ).build() ) ;
+		new ViewRebuild( DataElementStore.getInstance(), elements, Long.MAX_VALUE, List.of( view ), Map.of( "F", view ) ).run() ;
+
+		assertEquals( 7.0, view.getCell( "GBP" + DataElement.ROW_COL_SEPARATION_CHAR + "IR01" ).getValue(), 0.0 ) ;
+		assertNull( view.getCell( "USD" + DataElement.ROW_COL_SEPARATION_CHAR + "IR01" ) ) ;
+	}
+}
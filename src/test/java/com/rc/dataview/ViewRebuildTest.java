@@ -0,0 +1,60 @@
+package com.rc.dataview;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+
+import com.rc.datamodel.DataElement;
+import com.rc.datamodel.DataElementAttributes;
+import com.rc.datamodel.DataElementBuilder;
+import com.rc.datamodel.HeapDataElementMap;
+
+/**
+ * A view rebuild must not add an element removed from the store
+ * while the scan is running.
+ *
+ * @author richard
+ */
+public class ViewRebuildTest {
+
+	private final static String[] ATTRIBUTE_NAMES = new String[] { "TRADEID", "METRIC", "CCY" } ;
+
+	@Test
+	public void elementExpiredDuringTheScanIsNotAggregated() {
+		DataElementAttributes attributes = new DataElementAttributes( ATTRIBUTE_NAMES, 1 ) ;
+		DataElementBuilder builder = new DataElementBuilder( attributes ) ;
+
+		ViewDefinition viewDefinition = new ViewDefinition( "V" ) ;
+		viewDefinition.addColGroup( "CCY" ) ;
+		viewDefinition.addRowGroup( "METRIC" ) ;
+		DataElementDataView view = DataElementDataView.create( DataElementStore.getInstance(), viewDefinition ) ;
+
+		// the scan reads each element, then the element expires before the scan sends it
+		ViewRebuild[] rebuild = new ViewRebuild[1] ;
+		HeapDataElementMap elements = new HeapDataElementMap( 16 ) {
+			@Override
+			public void forEach( long parallelismThreshold, Consumer<DataElement> action ) {
+				super.forEach( parallelismThreshold, dataElement -> {
+					if( dataElement.getInvariantKey().equals( "EXPIRED" ) ) {
+						removeIfOlder( dataElement.getInvariantKey(), Long.MAX_VALUE ) ;
+						rebuild[0].remove( dataElement ) ;
+					}
+					action.accept( dataElement ) ;
+				} ) ;
+			}
+		} ;
+		elements.put( builder.invariantKey( "EXPIRED" ).core( 0, "EXPIRED" ).add( 5, "IR01", "EUR" ).build() ) ;
+		elements.put( builder.invariantKey( "KEPT" ).core( 0, "KEPT" ).add( 7, "IR01", "USD" ).build() ) ;
+
+		rebuild[0] = new ViewRebuild( DataElementStore.getInstance(), elements, Long.MAX_VALUE, List.of( view ), Map.of( "V", view ) ) ;
+		rebuild[0].run() ;
+
+		assertNull( "expired element was aggregated", view.getCell( "EUR" + DataElement.ROW_COL_SEPARATION_CHAR + "IR01" ) ) ;
+		assertEquals( 7.0, view.getCell( "USD" + DataElement.ROW_COL_SEPARATION_CHAR + "IR01" ).getValue(), 0.0 ) ;
+	}
+}